@@ -0,0 +1,315 @@
+package DS4H.Benchmarks;
+
+import DS4H.AlignedImageWriter;
+import DS4H.CompressedImageStack;
+import DS4H.ImagesManager;
+import DS4H.Landmarks;
+import DS4H.LeastSquareImageTransformation;
+import DS4H.PixelFormat;
+import DS4H.StackAlignment;
+import DS4H.TransformationModel;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import mpicbg.models.CoordinateTransform;
+import mpicbg.models.Point;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Point2D;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Aligns synthetic stacks end to end, from an OME-TIFF file to the aligned one, as StackAlignment does for the editor,
+ * and reports how long it took, how much memory and temporary disk it needed and how far the result is from the truth.
+ * Every slide is sampled from the same base image through a known transformation (an affine one, optionally followed by
+ * a smooth elastic deformation), and its landmarks are the base ones moved by the same transformation: the first slide
+ * is the base itself, so an exact alignment gives back the base image for every slide.
+ * Arguments are key=value pairs, for example: slides=8 size=4096 type=GRAY16 transform=ELASTIC model=AFFINE landmarks=32
+ * <p>
+ * The reported errors are the target registration error, that is the distance in pixels between where the fitted
+ * transformation brings some control points (not used as landmarks) and where they should be, and the root mean square
+ * difference between the aligned slides and the first one, over the center of the images and relative to the range of
+ * the pixel type. Run with -Djava.awt.headless=true on machines without a display.
+ */
+public class AlignmentHarness {
+    // part of each side of the images ignored by the errors, where the aligned slides are empty or extrapolated
+    private static final double MARGIN = 0.1;
+    // control points on each side of the grid measuring the registration error
+    private static final int CONTROL_GRID = 8;
+
+    public enum Deformation {
+        AFFINE, ELASTIC
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            if (pair.length != 2)
+                throw new IllegalArgumentException("Arguments must be key=value pairs: " + arg);
+            options.put(pair[0], pair[1]);
+        }
+        int slides = Integer.parseInt(options.getOrDefault("slides", "4"));
+        int size = Integer.parseInt(options.getOrDefault("size", "2048"));
+        SyntheticImages.PixelType type = SyntheticImages.PixelType.valueOf(options.getOrDefault("type", "RGB"));
+        Deformation deformation = Deformation.valueOf(options.getOrDefault("transform", "AFFINE"));
+        TransformationModel model = TransformationModel.valueOf(options.getOrDefault("model", "MOVING_LEAST_SQUARES"));
+        int landmarks = Integer.parseInt(options.getOrDefault("landmarks", "16"));
+        boolean rotate = Boolean.parseBoolean(options.getOrDefault("rotate", "true"));
+        boolean pyramidal = Boolean.parseBoolean(options.getOrDefault("pyramidal", "false"));
+        long seed = Long.parseLong(options.getOrDefault("seed", "1"));
+        int repeat = Integer.parseInt(options.getOrDefault("repeat", "3"));
+
+        File directory = Files.createTempDirectory("DS4H-harness").toFile();
+        try {
+            List<GroundTruth> truths = new ArrayList<>();
+            String path = createStack(directory, slides, size, type, deformation, landmarks, seed, truths);
+            System.out.println("run,slides,size,type,transform,model,landmarks,wall_ms,peak_heap_mb,temp_disk_mb,tre_mean_px,tre_max_px,pixel_rmse");
+            for (int run = 1; run <= repeat; run++) {
+                Result result = align(path, new File(directory, "aligned.ome.tiff").getPath(), size, type, rotate, model, pyramidal, truths);
+                System.out.println(String.format(Locale.ROOT, "%d,%d,%d,%s,%s,%s,%d,%.1f,%.1f,%.1f,%.3f,%.3f,%.5f",
+                        run, slides, size, type, deformation, model.name(), landmarks, result.wallMillis,
+                        result.peakHeapBytes / 1e6, result.tempDiskBytes / 1e6, result.meanError, result.maxError, result.pixelError));
+            }
+        }
+        finally {
+            File[] files = directory.listFiles();
+            if (files != null)
+                for (File file : files)
+                    file.delete();
+            directory.delete();
+        }
+        // with a display, the RoiManagers keep AWT threads alive
+        System.exit(0);
+    }
+
+    /**
+     * Writes the synthetic slides as the planes of an OME-TIFF file, and returns its path.
+     * The ground truth of each slide is added to the given list.
+     */
+    private static String createStack(File directory, int slides, int size, SyntheticImages.PixelType type, Deformation deformation,
+                                      int landmarks, long seed, List<GroundTruth> truths) throws Exception {
+        ImageProcessor base = SyntheticImages.createProcessor(type, size, size, seed);
+        base.setInterpolationMethod(ImageProcessor.BICUBIC);
+        String path = new File(directory, "slides.ome.tiff").getPath();
+        try (AlignedImageWriter writer = new AlignedImageWriter(path, size, size, slides, null, new int[0], getPixelFormat(type))) {
+            for (int i = 0; i < slides; i++) {
+                GroundTruth truth = i == 0 ? new GroundTruth(new AffineTransform(), 0, 1, 0) :
+                        new GroundTruth(SyntheticImages.createSmallTransform(size, size, seed + i),
+                                deformation == Deformation.ELASTIC ? size * 0.01 : 0, size / 2.0, new Random(seed + i).nextDouble() * Math.PI * 2);
+                truths.add(truth);
+                writer.writePlane(sample(base, truth));
+            }
+        }
+
+        // the landmarks of each slide are where its truth brings the ones of the base image
+        List<Point2D> baseLandmarks = SyntheticImages.createLandmarks(landmarks, size, size, seed);
+        for (GroundTruth truth : truths)
+            for (Point2D landmark : baseLandmarks)
+                truth.landmarks.add(truth.toSlide(landmark));
+        return path;
+    }
+
+    /**
+     * Returns the slide whose pixels are the ones of the base image where the given truth brings them
+     */
+    private static ImageProcessor sample(ImageProcessor base, GroundTruth truth) {
+        ImageProcessor slide = base.createProcessor(base.getWidth(), base.getHeight());
+        for (int y = 0; y < slide.getHeight(); y++) {
+            for (int x = 0; x < slide.getWidth(); x++) {
+                Point2D source = truth.toBase(new Point2D.Double(x, y));
+                if (source.getX() < 0 || source.getY() < 0 || source.getX() > base.getWidth() - 1 || source.getY() > base.getHeight() - 1)
+                    continue;
+                if (slide instanceof FloatProcessor)
+                    slide.setf(x, y, (float)base.getInterpolatedPixel(source.getX(), source.getY()));
+                else
+                    slide.set(x, y, base.getPixelInterpolated(source.getX(), source.getY()));
+            }
+        }
+        return slide;
+    }
+
+    private static Result align(String path, String alignedPath, int size, SyntheticImages.PixelType type, boolean rotate,
+                                TransformationModel model, boolean pyramidal, List<GroundTruth> truths) throws Exception {
+        ImagesManager manager = new ImagesManager(path);
+        CompressedImageStack stack = null;
+        try {
+            List<Landmarks> imageLandmarks = manager.getLandmarks();
+            for (int i = 0; i < truths.size(); i++)
+                for (Point2D landmark : truths.get(i).landmarks)
+                    imageLandmarks.get(i).addRoi(SyntheticImages.createLandmark(landmark));
+
+            List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+                if (pool.getType() == MemoryType.HEAP)
+                    heapPools.add(pool);
+            System.gc();
+            heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+
+            Result result = new Result();
+            long start = System.nanoTime();
+            stack = new StackAlignment(manager, rotate, model, manager.getPixelFormat(), pyramidal).align(alignedPath);
+            result.wallMillis = (System.nanoTime() - start) / 1000000;
+            // the sum of the peaks of each pool: an upper bound of the peak of the whole heap
+            for (MemoryPoolMXBean pool : heapPools)
+                result.peakHeapBytes += pool.getPeakUsage().getUsed();
+            result.tempDiskBytes = new File(alignedPath).length() + stack.getSpilledBytes();
+
+            measureRegistrationError(result, imageLandmarks, size, rotate, model, truths);
+            measurePixelError(result, stack, size, type, truths.size());
+            return result;
+        }
+        finally {
+            if (stack != null)
+                stack.dispose();
+            manager.dispose();
+            new File(alignedPath).delete();
+        }
+    }
+
+    /**
+     * Fits the transformation of each slide as the alignment does, and measures it on a grid of control points
+     */
+    private static void measureRegistrationError(Result result, List<Landmarks> imageLandmarks, int size, boolean rotate,
+                                                 TransformationModel model, List<GroundTruth> truths) throws Exception {
+        List<Point> templatePoints = LeastSquareImageTransformation.getPoints(imageLandmarks.get(0), null, null);
+        double sum = 0;
+        int count = 0;
+        for (int i = 1; i < truths.size(); i++) {
+            List<Point> sourcePoints = LeastSquareImageTransformation.getPoints(imageLandmarks.get(i), null, null);
+            CoordinateTransform fitted = model.isGlobal() ? LeastSquareImageTransformation.fitGlobal(sourcePoints, templatePoints, model) :
+                    LeastSquareImageTransformation.fit(sourcePoints, templatePoints, rotate);
+            for (int gy = 0; gy < CONTROL_GRID; gy++) {
+                for (int gx = 0; gx < CONTROL_GRID; gx++) {
+                    // between the landmarks of the jittered grid, so that none of them is a landmark
+                    Point2D expected = new Point2D.Double(size * (MARGIN + (1 - 2 * MARGIN) * (gx + 0.5) / CONTROL_GRID),
+                            size * (MARGIN + (1 - 2 * MARGIN) * (gy + 0.5) / CONTROL_GRID));
+                    Point2D slidePoint = truths.get(i).toSlide(expected);
+                    double[] aligned = fitted.apply(new double[]{slidePoint.getX(), slidePoint.getY()});
+                    double error = expected.distance(aligned[0], aligned[1]);
+                    sum += error;
+                    count++;
+                    result.maxError = Math.max(result.maxError, error);
+                }
+            }
+        }
+        result.meanError = count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * Compares the center of each aligned slide with the one of the first slide
+     */
+    private static void measurePixelError(Result result, CompressedImageStack stack, int size, SyntheticImages.PixelType type, int slides) {
+        int slicesPerImage = stack.getSize() / slides;
+        int from = (int)(size * MARGIN);
+        int to = size - from;
+        double range = type == SyntheticImages.PixelType.GRAY16 ? 65535 : type == SyntheticImages.PixelType.GRAY32 ? 1 : 255;
+        double sum = 0;
+        long count = 0;
+        for (int c = 1; c <= slicesPerImage; c++) {
+            ImageProcessor reference = stack.getProcessor(c);
+            for (int i = 1; i < slides; i++) {
+                ImageProcessor aligned = stack.getProcessor(i * slicesPerImage + c);
+                for (int y = from; y < to; y++) {
+                    for (int x = from; x < to; x++) {
+                        if (type == SyntheticImages.PixelType.RGB) {
+                            int expected = reference.get(x, y);
+                            int actual = aligned.get(x, y);
+                            for (int shift = 0; shift <= 16; shift += 8) {
+                                double difference = ((expected >> shift) & 0xff) - ((actual >> shift) & 0xff);
+                                sum += difference * difference;
+                                count++;
+                            }
+                        }
+                        else {
+                            double difference = reference.getf(x, y) - aligned.getf(x, y);
+                            sum += difference * difference;
+                            count++;
+                        }
+                    }
+                }
+            }
+        }
+        result.pixelError = count == 0 ? 0 : Math.sqrt(sum / count) / range;
+    }
+
+    private static PixelFormat getPixelFormat(SyntheticImages.PixelType type) {
+        switch (type) {
+            case GRAY8:
+                return new PixelFormat(8, 1);
+            case GRAY16:
+                return new PixelFormat(16, 1);
+            case GRAY32:
+                return new PixelFormat(32, 1);
+            default:
+                return PixelFormat.RGB;
+        }
+    }
+
+    /**
+     * The transformation from the coordinates of the base image to the ones of a slide: an affine transformation,
+     * followed by a sinusoidal displacement of the given amplitude and wavelength (none if the amplitude is zero)
+     */
+    private static class GroundTruth {
+        private final AffineTransform inverse;
+        private final double amplitude;
+        private final double wavelength;
+        private final double phase;
+        private final List<Point2D> landmarks = new ArrayList<>();
+
+        private GroundTruth(AffineTransform transform, double amplitude, double wavelength, double phase) throws NoninvertibleTransformException {
+            this.inverse = transform.createInverse();
+            this.amplitude = amplitude;
+            this.wavelength = wavelength;
+            this.phase = phase;
+        }
+
+        /**
+         * Returns the point of the base image the given point of the slide has been sampled from
+         */
+        private Point2D toBase(Point2D slidePoint) {
+            Point2D point = inverse.transform(slidePoint, null);
+            if (amplitude == 0)
+                return point;
+            double dx = amplitude * Math.sin(2 * Math.PI * slidePoint.getY() / wavelength + phase);
+            double dy = amplitude * Math.sin(2 * Math.PI * slidePoint.getX() / wavelength - phase);
+            return new Point2D.Double(point.getX() + dx, point.getY() + dy);
+        }
+
+        /**
+         * Returns the point of the slide sampled from the given point of the base image, inverting toBase by fixed-point
+         * iteration: the displacement is small and smooth enough for it to converge in a few steps
+         */
+        private Point2D toSlide(Point2D basePoint) {
+            Point2D.Double point = new Point2D.Double(basePoint.getX(), basePoint.getY());
+            for (int i = 0; i < 100; i++) {
+                Point2D mapped = toBase(point);
+                double dx = basePoint.getX() - mapped.getX();
+                double dy = basePoint.getY() - mapped.getY();
+                point.setLocation(point.getX() + dx, point.getY() + dy);
+                if (dx * dx + dy * dy < 1e-12)
+                    break;
+            }
+            return point;
+        }
+    }
+
+    private static class Result {
+        private long wallMillis;
+        private long peakHeapBytes;
+        private long tempDiskBytes;
+        private double meanError;
+        private double maxError;
+        private double pixelError;
+    }
+}
@@ -0,0 +1,55 @@
+package DS4H.Benchmarks;
+
+import DS4H.LeastSquareImageTransformation;
+import ij.ImagePlus;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures LeastSquareImageTransformation.convertToStack on synthetic images, in megapixels of stack per second (the
+ * "megapixels" counter)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+public class ConvertToStackBenchmark {
+    @Param({"1024", "2048", "4096"})
+    public int size;
+
+    @Param({"GRAY8", "GRAY16", "GRAY32", "RGB"})
+    public SyntheticImages.PixelType pixelType;
+
+    @Param({"4", "16"})
+    public int count;
+
+    private ImagePlus[] images;
+
+    @Setup(Level.Trial)
+    public void createImages() {
+        images = new ImagePlus[count];
+        for (int i = 0; i < count; i++)
+            images[i] = new ImagePlus("", SyntheticImages.createProcessor(pixelType, size, size, i));
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Pixels {
+        public double megapixels;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megapixels = 0;
+        }
+    }
+
+    @Benchmark
+    public ImagePlus convertToStack(Pixels pixels) {
+        ImagePlus stack = LeastSquareImageTransformation.convertToStack(images, count, size, size);
+        pixels.megapixels += (double)size * size * count / 1e6;
+        return stack;
+    }
+}
@@ -0,0 +1,196 @@
+package DS4H.Benchmarks;
+
+import DS4H.BufferedImage.BufferedImage;
+import DS4H.ImageFile;
+import DS4H.ImagesManager;
+import loci.formats.FormatException;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long users wait while files are opened and paged through, on files of Bio-Formats' fake format: their
+ * pixels are generated on the fly from the parameters in the file name, so any size and pyramid can be measured
+ * without real slides. Generating the pixels is cheaper than decoding real compressed tiles: the times measure the
+ * overhead of the plugin and of Bio-Formats, which is what changes with the code.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+public class ImageFileBenchmark {
+    // images in each file
+    private static final int PLANES = 4;
+
+    public enum Layout {
+        // a small image, edited at full resolution
+        FLAT_2K(2048, 1),
+        // a big image without levels, still edited at full resolution
+        FLAT_8K(8192, 1),
+        // a whole-slide image, edited from one of its levels
+        PYRAMID_32K(32768, 5);
+
+        private final int size;
+        private final int resolutions;
+
+        Layout(int size, int resolutions) {
+            this.size = size;
+            this.resolutions = resolutions;
+        }
+    }
+
+    public enum PixelType {
+        RGB8("uint8", 3), GRAY16("uint16", 1);
+
+        private final String pixelType;
+        private final int channels;
+
+        PixelType(String pixelType, int channels) {
+            this.pixelType = pixelType;
+            this.channels = channels;
+        }
+    }
+
+    @Param({"FLAT_2K", "FLAT_8K", "PYRAMID_32K"})
+    public Layout layout;
+
+    @Param({"RGB8", "GRAY16"})
+    public PixelType pixelType;
+
+    private File directory;
+    private String path;
+    private ImageFile imageFile;
+    private int plane = 0;
+
+    @Setup(Level.Trial)
+    public void createFile() throws IOException, FormatException {
+        directory = Files.createTempDirectory("DS4H-benchmark").toFile();
+        path = createFakeFile(directory, layout, pixelType);
+        imageFile = new ImageFile(path);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() throws IOException {
+        imageFile.dispose();
+        new File(path).delete();
+        directory.delete();
+    }
+
+    /**
+     * Creates an empty file whose name tells the fake format what it holds
+     */
+    public static String createFakeFile(File directory, Layout layout, PixelType pixelType) throws IOException {
+        String name = "DS4H&sizeX=" + layout.size + "&sizeY=" + layout.size + "&sizeZ=" + PLANES +
+                "&pixelType=" + pixelType.pixelType + "&sizeC=" + pixelType.channels + "&rgb=" + pixelType.channels +
+                "&resolutions=" + layout.resolutions + "&resolutionScale=2.fake";
+        File file = new File(directory, name);
+        if (!file.exists() && !file.createNewFile())
+            throw new IOException("Can't create " + file);
+        return file.getPath();
+    }
+
+    /**
+     * Opening a file: readers, metadata, and the choice of the image to edit
+     */
+    @Benchmark
+    public ImageFile open() throws IOException, FormatException {
+        ImageFile opened = new ImageFile(path);
+        opened.dispose();
+        return opened;
+    }
+
+    @Benchmark
+    public long estimateMemoryUsage() throws IOException, FormatException {
+        return ImageFile.estimateMemoryUsage(path);
+    }
+
+    /**
+     * Decoding an image at the size it is edited at, without any cache
+     */
+    @Benchmark
+    public java.awt.image.BufferedImage decodeEditorImage() throws IOException, FormatException {
+        plane = (plane + 1) % PLANES;
+        return imageFile.openEditorImage(plane);
+    }
+
+    /**
+     * Decoding a region of the full resolution image, as the tiled alignment does: RGB images as RGB, the others in their own type
+     */
+    @Benchmark
+    public Object decodeRegion() throws IOException, FormatException {
+        plane = (plane + 1) % PLANES;
+        Dimension dimension = imageFile.getWholeSlideDimension();
+        int size = Math.min(1024, dimension.width);
+        Rectangle region = new Rectangle((dimension.width - size) / 2, (dimension.height - size) / 2, size, size);
+        return pixelType == PixelType.RGB8 ? imageFile.openRegion(plane, region) : imageFile.openProcessors(plane, region);
+    }
+
+    /**
+     * The thumbnails are built once for every file: each call gets a file that has just been opened
+     */
+    @State(Scope.Thread)
+    public static class NewFile {
+        private ImageFile imageFile;
+
+        @Setup(Level.Invocation)
+        public void open(ImageFileBenchmark benchmark) throws IOException, FormatException {
+            imageFile = new ImageFile(benchmark.path);
+        }
+
+        @TearDown(Level.Invocation)
+        public void close() throws IOException {
+            imageFile.dispose();
+        }
+    }
+
+    @Benchmark
+    public List<java.awt.image.BufferedImage> thumbnails(NewFile newFile) {
+        return newFile.imageFile.getThumbs();
+    }
+
+    /**
+     * Paging through the images with next() and previous(), back and forth, with the given pause between two moves
+     * (not measured) during which the prefetcher can work, as while the user places the landmarks
+     */
+    @State(Scope.Thread)
+    public static class Navigation {
+        @Param({"0", "200"})
+        public int pauseMillis;
+
+        private ImagesManager manager;
+        private int direction = 1;
+
+        @Setup(Level.Trial)
+        public void open(ImageFileBenchmark benchmark) throws Exception {
+            manager = new ImagesManager(benchmark.path);
+            manager.next();
+        }
+
+        @Setup(Level.Invocation)
+        public void pause() throws InterruptedException {
+            if (pauseMillis > 0)
+                Thread.sleep(pauseMillis);
+            if (direction > 0 && !manager.hasNext())
+                direction = -1;
+            else if (direction < 0 && !manager.hasPrevious())
+                direction = 1;
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            manager.dispose();
+        }
+    }
+
+    @Benchmark
+    public BufferedImage navigate(Navigation navigation) {
+        return navigation.direction > 0 ? navigation.manager.next() : navigation.manager.previous();
+    }
+}
@@ -0,0 +1,147 @@
+package DS4H.Benchmarks;
+
+import DS4H.BufferedImage.BufferedImage;
+import DS4H.Landmarks;
+import ij.ImageStack;
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic images and landmarks for the benchmarks. Images are smooth patterns with some noise on top, so that the
+ * interpolation has real work to do, and everything is generated from a seed, so that every run measures the same pixels.
+ */
+public class SyntheticImages {
+    // size of the landmarks added to the images, as the editor draws them
+    private static final int LANDMARK_SIZE = 20;
+
+    public enum PixelType {
+        GRAY8, GRAY16, GRAY32, RGB
+    }
+
+    /**
+     * Returns an image of the given type and size
+     */
+    public static ImageProcessor createProcessor(PixelType type, int width, int height, long seed) {
+        Random random = new Random(seed);
+        // a few waves of random frequency and phase for each channel
+        double[][] waves = new double[3][6];
+        for (double[] channel : waves)
+            for (int i = 0; i < channel.length; i++)
+                channel[i] = i % 3 == 2 ? random.nextDouble() * Math.PI * 2 : (0.5 + random.nextDouble()) * Math.PI * 2 / 256;
+
+        ImageProcessor ip = createEmpty(type, width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double noise = random.nextGaussian() * 0.05;
+                if (type == PixelType.RGB) {
+                    int r = (int)(255 * clamp(pattern(waves[0], x, y) + noise));
+                    int g = (int)(255 * clamp(pattern(waves[1], x, y) + noise));
+                    int b = (int)(255 * clamp(pattern(waves[2], x, y) + noise));
+                    ip.set(x, y, (r << 16) | (g << 8) | b);
+                }
+                else {
+                    double value = clamp(pattern(waves[0], x, y) + noise);
+                    if (type == PixelType.GRAY32)
+                        ip.setf(x, y, (float)value);
+                    else
+                        ip.set(x, y, (int)(value * (type == PixelType.GRAY8 ? 255 : 65535)));
+                }
+            }
+        }
+        return ip;
+    }
+
+    private static ImageProcessor createEmpty(PixelType type, int width, int height) {
+        switch (type) {
+            case GRAY8:
+                return new ByteProcessor(width, height);
+            case GRAY16:
+                return new ShortProcessor(width, height);
+            case GRAY32:
+                return new FloatProcessor(width, height);
+            default:
+                return new ColorProcessor(width, height);
+        }
+    }
+
+    private static double pattern(double[] wave, int x, int y) {
+        return 0.5 + 0.25 * Math.sin(x * wave[0] + y * wave[1] + wave[2]) + 0.2 * Math.cos(x * wave[3] - y * wave[4] + wave[5]);
+    }
+
+    private static double clamp(double value) {
+        return Math.max(0, Math.min(1, value));
+    }
+
+    /**
+     * Returns the given number of landmarks, spread on a jittered grid that covers the image apart from a margin
+     */
+    public static List<Point2D> createLandmarks(int count, int width, int height, long seed) {
+        Random random = new Random(seed);
+        int columns = (int)Math.ceil(Math.sqrt(count));
+        int rows = (count + columns - 1) / columns;
+        double cellWidth = width * 0.8 / columns;
+        double cellHeight = height * 0.8 / rows;
+        List<Point2D> landmarks = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            double x = width * 0.1 + (i % columns + 0.25 + random.nextDouble() * 0.5) * cellWidth;
+            double y = height * 0.1 + (i / columns + 0.25 + random.nextDouble() * 0.5) * cellHeight;
+            landmarks.add(new Point2D.Double(x, y));
+        }
+        return landmarks;
+    }
+
+    /**
+     * Returns the given landmarks moved by the given transformation
+     */
+    public static List<Point2D> transform(List<Point2D> landmarks, AffineTransform transform) {
+        List<Point2D> transformed = new ArrayList<>();
+        landmarks.forEach(landmark -> transformed.add(transform.transform(landmark, null)));
+        return transformed;
+    }
+
+    /**
+     * A small rotation, scaling and translation around the center of an image of the given size, like the ones
+     * between consecutive sections of the same sample
+     */
+    public static AffineTransform createSmallTransform(int width, int height, long seed) {
+        Random random = new Random(seed);
+        AffineTransform transform = AffineTransform.getTranslateInstance((random.nextDouble() - 0.5) * width * 0.04, (random.nextDouble() - 0.5) * height * 0.04);
+        transform.rotate(Math.toRadians((random.nextDouble() - 0.5) * 6), width / 2.0, height / 2.0);
+        double scale = 1 + (random.nextDouble() - 0.5) * 0.04;
+        transform.translate(width / 2.0, height / 2.0);
+        transform.scale(scale, scale);
+        transform.translate(-width / 2.0, -height / 2.0);
+        return transform;
+    }
+
+    /**
+     * Wraps the given processor in an editor image holding the given landmarks, as the alignment expects it
+     */
+    public static BufferedImage createImage(ImageProcessor ip, List<Point2D> landmarks) {
+        ImageStack stack = new ImageStack(ip.getWidth(), ip.getHeight());
+        stack.addSlice("", ip);
+        Landmarks imageLandmarks = new Landmarks();
+        for (Point2D landmark : landmarks)
+            imageLandmarks.addRoi(createLandmark(landmark));
+        return new BufferedImage("", stack, imageLandmarks, new Dimension(ip.getWidth(), ip.getHeight()));
+    }
+
+    /**
+     * Returns the landmark at the given point, as the editor adds it
+     */
+    public static Roi createLandmark(Point2D landmark) {
+        return new OvalRoi(landmark.getX() - LANDMARK_SIZE / 2.0, landmark.getY() - LANDMARK_SIZE / 2.0, LANDMARK_SIZE, LANDMARK_SIZE);
+    }
+}
@@ -0,0 +1,96 @@
+package DS4H.Benchmarks;
+
+import DS4H.BufferedImage.BufferedImage;
+import DS4H.LeastSquareImageTransformation;
+import DS4H.TransformationModel;
+import ij.ImagePlus;
+import ij.gui.Roi;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures LeastSquareImageTransformation.transform (moving least squares) on synthetic images, in megapixels of
+ * aligned image per second (the "megapixels" counter).
+ * The transform method moves a landmark by a negligible amount before every call, so that the mesh is fitted every time
+ * as when a new pair of images is aligned; transformCachedMesh reuses the mesh, as when the same images are aligned again.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+public class TransformBenchmark {
+    @Param({"1024", "2048", "4096"})
+    public int size;
+
+    @Param({"GRAY8", "GRAY16", "GRAY32", "RGB"})
+    public SyntheticImages.PixelType pixelType;
+
+    @Param({"4", "16", "64"})
+    public int landmarks;
+
+    // affine (true) or translation (false) model of the moving least squares
+    @Param({"true", "false"})
+    public boolean rotate;
+
+    @Param({"true", "false"})
+    public boolean interpolate;
+
+    private BufferedImage source;
+    private BufferedImage template;
+
+    @Setup(Level.Trial)
+    public void createImages() {
+        List<Point2D> templateLandmarks = SyntheticImages.createLandmarks(landmarks, size, size, 1);
+        AffineTransform transform = SyntheticImages.createSmallTransform(size, size, 2);
+        source = SyntheticImages.createImage(SyntheticImages.createProcessor(pixelType, size, size, 3), SyntheticImages.transform(templateLandmarks, transform));
+        template = SyntheticImages.createImage(SyntheticImages.createProcessor(pixelType, size, size, 4), templateLandmarks);
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Pixels {
+        public double megapixels;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megapixels = 0;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class NewLandmarks {
+        private long invocations = 0;
+        private double originalX = Double.NaN;
+
+        @Setup(Level.Invocation)
+        public void moveLandmark(TransformBenchmark benchmark) {
+            Roi landmark = benchmark.source.getLandmarks().getRoisAsArray()[0];
+            if (Double.isNaN(originalX))
+                originalX = landmark.getXBase();
+            // a different position every time, still far below a pixel after millions of calls
+            landmark.setLocation(originalX + ++invocations * 1e-9, landmark.getYBase());
+        }
+    }
+
+    @Benchmark
+    public ImagePlus transform(Pixels pixels, NewLandmarks newLandmarks) {
+        return transform(pixels);
+    }
+
+    @Benchmark
+    public ImagePlus transformCachedMesh(Pixels pixels) {
+        return transform(pixels);
+    }
+
+    private ImagePlus transform(Pixels pixels) {
+        ImagePlus transformed = LeastSquareImageTransformation.transform(source, template, rotate, TransformationModel.MOVING_LEAST_SQUARES, interpolate);
+        pixels.megapixels += (double)size * size / 1e6;
+        return transformed;
+    }
+}
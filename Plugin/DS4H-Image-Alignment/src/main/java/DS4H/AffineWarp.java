@@ -0,0 +1,104 @@
+package DS4H;
+
+import ij.IJ;
+import ij.process.ImageProcessor;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+
+/**
+ * Warps an image with a single affine transformation.
+ * Each target pixel is mapped back onto the source image, row by row: along a row the source coordinates change by a
+ * constant step, so they are computed with two additions per pixel instead of a full matrix product, and only the part
+ * of the row that falls inside the source image is visited at all.
+ */
+public class AffineWarp {
+
+    /**
+     * Fills the target with the source image transformed by the given transformation, going from source coordinates to
+     * target coordinates. Target pixels that come from outside the source image are left untouched.
+     */
+    public static void warp(ImageProcessor source, ImageProcessor target, AffineTransform sourceToTarget, boolean interpolate) throws NoninvertibleTransformException {
+        final boolean kernels = interpolate && WarpKernels.isEnabled() && WarpKernels.supports(source, target);
+        warp(source, target, sourceToTarget, interpolate, kernels);
+        if (kernels && WarpKernels.isCheckEnabled()) {
+            ImageProcessor reference = target.createProcessor(target.getWidth(), target.getHeight());
+            warp(source, reference, sourceToTarget, interpolate, false);
+            IJ.log("Warp kernels check: " + WarpKernels.countDifferences(target, reference) + " pixels differ from the generic warp");
+        }
+    }
+
+    private static void warp(ImageProcessor source, ImageProcessor target, AffineTransform sourceToTarget, boolean interpolate, boolean kernels) throws NoninvertibleTransformException {
+        double[] matrix = new double[6];
+        sourceToTarget.createInverse().getMatrix(matrix);
+        // the kernels only write the pixels of their own rows, so bands of rows can be warped in parallel
+        if (kernels)
+            WarpKernels.forEachBand(target.getHeight(), (fromRow, toRow) -> warpRows(source, target, matrix, interpolate, true, fromRow, toRow));
+        else
+            warpRows(source, target, matrix, interpolate, false, 0, target.getHeight());
+    }
+
+    private static void warpRows(ImageProcessor source, ImageProcessor target, double[] matrix, boolean interpolate, boolean kernels, int fromRow, int toRow) {
+        // target (x, y) -> source (m00 * x + m01 * y + m02, m10 * x + m11 * y + m12)
+        final double m00 = matrix[0], m10 = matrix[1], m01 = matrix[2], m11 = matrix[3], m02 = matrix[4], m12 = matrix[5];
+        final int sourceWidth = source.getWidth();
+        final int sourceHeight = source.getHeight();
+        final int targetWidth = target.getWidth();
+        final int[] targetX = new int[kernels ? targetWidth : 0];
+        final double[] sourceXs = new double[targetX.length];
+        final double[] sourceYs = new double[targetX.length];
+
+        for (int y = fromRow; y < toRow; y++) {
+            double rowX = m01 * y + m02;
+            double rowY = m11 * y + m12;
+            double[] span = {0, targetWidth};
+            if (!clip(span, rowX, m00, sourceWidth) || !clip(span, rowY, m10, sourceHeight))
+                continue;
+            int from = (int)Math.ceil(span[0]);
+            int to = Math.min(targetWidth, (int)Math.ceil(span[1]));
+
+            double sourceX = rowX + m00 * from;
+            double sourceY = rowY + m10 * from;
+            if (kernels) {
+                int count = 0;
+                for (int x = from; x < to; x++) {
+                    targetX[count] = x;
+                    sourceXs[count] = sourceX;
+                    sourceYs[count] = sourceY;
+                    count++;
+                    sourceX += m00;
+                    sourceY += m10;
+                }
+                WarpKernels.sampleRow(source, target, y, targetX, sourceXs, sourceYs, count);
+                continue;
+            }
+            for (int x = from; x < to; x++) {
+                if (interpolate)
+                    target.putPixel(x, y, source.getPixelInterpolated(sourceX, sourceY));
+                else
+                    target.putPixel(x, y, source.getPixel((int)(sourceX + 0.5), (int)(sourceY + 0.5)));
+                sourceX += m00;
+                sourceY += m10;
+            }
+        }
+    }
+
+    /**
+     * Restricts the span [from, to) of a row to the x for which 0 <= start + x * step < size
+     */
+    private static boolean clip(double[] span, double start, double step, int size) {
+        if (step == 0) {
+            if (start < 0 || start >= size)
+                span[1] = span[0];
+        }
+        else if (step > 0) {
+            span[0] = Math.max(span[0], -start / step);
+            span[1] = Math.min(span[1], (size - start) / step);
+        }
+        else {
+            span[0] = Math.max(span[0], (size - start) / step);
+            span[1] = Math.min(span[1], -start / step);
+        }
+        return span[0] < span[1];
+    }
+}
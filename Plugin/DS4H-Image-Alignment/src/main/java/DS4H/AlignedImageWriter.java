@@ -0,0 +1,389 @@
+package DS4H;
+
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.MetadataTools;
+import loci.formats.meta.IMetadata;
+import loci.formats.meta.IPyramidStore;
+import loci.formats.meta.MetadataRetrieve;
+import loci.formats.out.OMETiffWriter;
+import ome.xml.model.primitives.PositiveInteger;
+
+import java.awt.*;
+import java.awt.image.ColorModel;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes the aligned images to an OME-TIFF file, as soon as each one of them (or each one of their tiles) is available.
+ * This way every aligned image is encoded exactly once, straight into its destination file.
+ * When the output would exceed the 4GB limit of plain TIFF files, BigTIFF is used. Big images are written in tiles, so
+ * the memory needed is bounded by the tile size and not by the image size.
+ * Optionally, each plane is written together with its lower resolution levels (as SubIFDs), so that pyramid-aware
+ * readers only have to decode the level they need.
+ * Pixels are written either as 8-bit RGB, with the samples of each pixel interleaved, or in the type of the source files,
+ * with a TIFF plane for each channel of each image so that every channel keeps its own name and color. TIFF planes are
+ * written one after the other, so when an image is written tile by tile the tiles of all its channels but the first
+ * are kept compressed until its last tile.
+ */
+public class AlignedImageWriter implements Closeable {
+    public static int DEFAULT_TILE_SIZE = 1024;
+    // leave some room for the IFDs and the OME-XML metadata under the 4GB limit of plain TIFF files
+    private static final long BIG_TIFF_THRESHOLD = 0xFFFFFFFFL - 256L * 1024 * 1024;
+    // resolution levels are added until the image is smaller than this
+    private static final int MINIMUM_LEVEL_SIZE = 256;
+    // part of the heap that can be used by the resolution levels of a plane written tile by tile
+    private static final double STREAMING_LEVELS_HEAP_FRACTION = 0.1;
+
+    private final OMETiffWriter writer;
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final PixelFormat format;
+    private int nextPlane = 0;
+
+    private final int[] pyramidFactors;
+    // the resolution levels can only be written after all the full resolution planes: in the meantime they are kept compressed
+    private final CompressedImageStack[] levels;
+    // the levels of the plane being written tile by tile, one processor for each channel
+    private ImageProcessor[][] pendingLevels;
+    private int pendingPlane = -1;
+    // the tiles of the channels after the first one of the plane being written tile by tile, and where they go
+    private CompressedImageStack pendingChannels;
+    private final List<Rectangle> pendingTiles = new ArrayList<>();
+
+    public AlignedImageWriter(String path, int width, int height, int planes) throws IOException, FormatException {
+        this(path, width, height, planes, DEFAULT_TILE_SIZE, null, new int[0]);
+    }
+
+    public AlignedImageWriter(String path, int width, int height, int planes, MetadataRetrieve sourceMetadata, int[] pyramidFactors) throws IOException, FormatException {
+        this(path, width, height, planes, DEFAULT_TILE_SIZE, sourceMetadata, pyramidFactors, PixelFormat.RGB);
+    }
+
+    public AlignedImageWriter(String path, int width, int height, int planes, MetadataRetrieve sourceMetadata, int[] pyramidFactors, PixelFormat format) throws IOException, FormatException {
+        this(path, width, height, planes, DEFAULT_TILE_SIZE, sourceMetadata, pyramidFactors, format);
+    }
+
+    public AlignedImageWriter(String path, int width, int height, int planes, int tileSize, MetadataRetrieve sourceMetadata, int[] pyramidFactors) throws IOException, FormatException {
+        this(path, width, height, planes, tileSize, sourceMetadata, pyramidFactors, PixelFormat.RGB);
+    }
+
+    /**
+     * @param sourceMetadata the metadata of the reference image, from which the physical pixel sizes, the acquisition date
+     *                       and the names and colors of the channels are preserved. Can be null
+     * @param pyramidFactors the downsampling factors of the resolution levels written for each plane, empty for a flat file
+     * @param format the format of the written pixels: the planes passed in any other format are converted to RGB
+     */
+    public AlignedImageWriter(String path, int width, int height, int planes, int tileSize, MetadataRetrieve sourceMetadata, int[] pyramidFactors, PixelFormat format) throws IOException, FormatException {
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.pyramidFactors = pyramidFactors;
+        this.format = format;
+
+        int samples = format.isRGB() ? 3 : format.getChannels();
+        IMetadata metadata = MetadataTools.createOMEXMLMetadata();
+        MetadataTools.populateMetadata(metadata, 0, "Aligned", false, "XYCZT", FormatTools.getPixelTypeString(format.getPixelType()), width, height, planes, samples, 1, format.isRGB() ? samples : 1);
+        copyMetadata(sourceMetadata, metadata, format.isRGB() ? 1 : samples);
+
+        this.levels = new CompressedImageStack[pyramidFactors.length];
+        if (pyramidFactors.length > 0) {
+            if (!(metadata instanceof IPyramidStore))
+                throw new FormatException("Pyramidal output is not supported by the available Bio-Formats version");
+            for (int i = 0; i < pyramidFactors.length; i++) {
+                int levelWidth = getLevelSize(width, pyramidFactors[i]);
+                int levelHeight = getLevelSize(height, pyramidFactors[i]);
+                ((IPyramidStore)metadata).setResolutionSizeX(new PositiveInteger(levelWidth), 0, i + 1);
+                ((IPyramidStore)metadata).setResolutionSizeY(new PositiveInteger(levelHeight), 0, i + 1);
+                this.levels[i] = new CompressedImageStack(levelWidth, levelHeight, format.isRGB() ? ColorModel.getRGBdefault() : null);
+            }
+        }
+
+        this.writer = new OMETiffWriter();
+        this.writer.setMetadataRetrieve(metadata);
+        // the resolution levels are written as SubIFDs of the same file, and take up to a third more than the planes
+        long pixels = (long)width * height;
+        for (int factor : pyramidFactors)
+            pixels += (long)getLevelSize(width, factor) * getLevelSize(height, factor);
+        this.writer.setBigTiff(pixels * samples * format.getBytesPerSample() * planes > BIG_TIFF_THRESHOLD);
+        this.writer.setInterleaved(true);
+        this.writer.setWriteSequentially(true);
+        if (width > tileSize || height > tileSize) {
+            this.writer.setTileSizeX(tileSize);
+            this.writer.setTileSizeY(tileSize);
+        }
+        this.writer.setId(path);
+    }
+
+    /**
+     * Returns the downsampling factors (2, 4, 8...) of all the resolution levels worth writing for an image of the given size
+     */
+    public static int[] getPyramidFactors(int width, int height) {
+        List<Integer> factors = new ArrayList<>();
+        for (int factor = 2; Math.max(width, height) / factor >= MINIMUM_LEVEL_SIZE; factor *= 2)
+            factors.add(factor);
+        return factors.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Like getPyramidFactors, but when the planes are written tile by tile, since in that case the resolution levels of
+     * a plane have to be kept in memory until all of its tiles are written: the biggest levels are dropped if they do not fit.
+     */
+    public static int[] getStreamingPyramidFactors(int width, int height) {
+        return getStreamingPyramidFactors(width, height, PixelFormat.RGB);
+    }
+
+    public static int[] getStreamingPyramidFactors(int width, int height, PixelFormat format) {
+        int[] factors = getPyramidFactors(width, height);
+        long budget = (long)(Runtime.getRuntime().maxMemory() * STREAMING_LEVELS_HEAP_FRACTION);
+        int first = 0;
+        while (first < factors.length && getLevelsMemory(width, height, factors, first, format.getBytesPerPixel()) > budget)
+            first++;
+        return Arrays.copyOfRange(factors, first, factors.length);
+    }
+
+    private static long getLevelsMemory(int width, int height, int[] factors, int first, int bytesPerPixel) {
+        long memory = 0;
+        for (int i = first; i < factors.length; i++)
+            memory += (long)getLevelSize(width, factors[i]) * getLevelSize(height, factors[i]) * bytesPerPixel;
+        return memory;
+    }
+
+    private static int getLevelSize(int size, int factor) {
+        return Math.max(1, size / factor);
+    }
+
+    private static void copyMetadata(MetadataRetrieve source, IMetadata target, int channels) {
+        if (source == null || source.getImageCount() == 0)
+            return;
+        if (source.getImageName(0) != null)
+            target.setImageName("Aligned " + source.getImageName(0), 0);
+        if (source.getPixelsPhysicalSizeX(0) != null)
+            target.setPixelsPhysicalSizeX(source.getPixelsPhysicalSizeX(0), 0);
+        if (source.getPixelsPhysicalSizeY(0) != null)
+            target.setPixelsPhysicalSizeY(source.getPixelsPhysicalSizeY(0), 0);
+        // the aligned images are stacked along Z, so the spacing only holds when they are the sections of a single stack
+        if (source.getPixelsPhysicalSizeZ(0) != null)
+            target.setPixelsPhysicalSizeZ(source.getPixelsPhysicalSizeZ(0), 0);
+        if (source.getImageAcquisitionDate(0) != null)
+            target.setImageAcquisitionDate(source.getImageAcquisitionDate(0), 0);
+        // RGB images are written as a single OME channel: its name and color only make sense when the source has a single
+        // channel as well
+        if (channels == 1 && source.getChannelCount(0) != 1)
+            return;
+        for (int c = 0; c < Math.min(channels, source.getChannelCount(0)); c++) {
+            if (source.getChannelName(0, c) != null)
+                target.setChannelName(source.getChannelName(0, c), 0, c);
+            if (source.getChannelColor(0, c) != null)
+                target.setChannelColor(source.getChannelColor(0, c), 0, c);
+        }
+    }
+
+    /**
+     * Writes a whole image as the next plane of the file. Its resolution levels are computed one from the other while the image is still in memory
+     */
+    public void writePlane(ImageProcessor ip) throws IOException, FormatException {
+        writePlane(new ImageProcessor[]{ip});
+    }
+
+    /**
+     * Like writePlane, for an image with a processor for each channel
+     */
+    public void writePlane(ImageProcessor[] channels) throws IOException, FormatException {
+        int plane = nextPlane++;
+        writeTiles(plane, channels);
+
+        for (ImageProcessor channel : channels) {
+            ImageProcessor level = channel;
+            for (int i = 0; i < pyramidFactors.length; i++) {
+                level = downsample(level, getLevelSize(width, pyramidFactors[i]), getLevelSize(height, pyramidFactors[i]));
+                levels[i].addSlice("", format.isRGB() ? level.convertToRGB() : level);
+            }
+        }
+    }
+
+    /**
+     * Writes a tile of the given plane. Tiles of a plane must be written row by row, and planes one after the other.
+     */
+    public void writeTile(int plane, ImageProcessor tile, int x, int y) throws IOException, FormatException {
+        writeTile(plane, new ImageProcessor[]{tile}, x, y);
+    }
+
+    /**
+     * Like writeTile, for a tile with a processor for each channel
+     */
+    public void writeTile(int plane, ImageProcessor[] tile, int x, int y) throws IOException, FormatException {
+        int tileWidth = tile[0].getWidth();
+        int tileHeight = tile[0].getHeight();
+        boolean lastTile = x + tileWidth >= width && y + tileHeight >= height;
+        saveTile(plane, 0, tile[0], x, y);
+        if (tile.length > 1) {
+            if (pendingChannels == null)
+                pendingChannels = new CompressedImageStack(tileSize, tileSize, null);
+            pendingTiles.add(new Rectangle(x, y, tileWidth, tileHeight));
+            for (int c = 1; c < tile.length; c++)
+                pendingChannels.addSlice(CompressedImageStack.compress("", tile[c]));
+            if (lastTile)
+                writePendingChannels(plane, tile.length);
+        }
+        if (pyramidFactors.length == 0)
+            return;
+
+        if (plane != pendingPlane) {
+            pendingPlane = plane;
+            pendingLevels = new ImageProcessor[pyramidFactors.length][tile.length];
+            for (int i = 0; i < pyramidFactors.length; i++)
+                for (int c = 0; c < tile.length; c++)
+                    pendingLevels[i][c] = format.createProcessor(getLevelSize(width, pyramidFactors[i]), getLevelSize(height, pyramidFactors[i]));
+        }
+        for (int i = 0; i < pyramidFactors.length; i++) {
+            int factor = pyramidFactors[i];
+            int levelX = x / factor;
+            int levelY = y / factor;
+            int levelWidth = Math.max(1, (x + tileWidth) / factor - levelX);
+            int levelHeight = Math.max(1, (y + tileHeight) / factor - levelY);
+            for (int c = 0; c < tile.length; c++)
+                pendingLevels[i][c].insert(downsample(tile[c], levelWidth, levelHeight), levelX, levelY);
+        }
+
+        if (lastTile) {
+            for (int i = 0; i < pyramidFactors.length; i++)
+                for (ImageProcessor channel : pendingLevels[i])
+                    levels[i].addSlice("", channel);
+            pendingLevels = null;
+            pendingPlane = -1;
+        }
+    }
+
+    /**
+     * Writes the tiles kept for the channels after the first one of the given plane, now that all the tiles of its first
+     * channel have been written
+     */
+    private void writePendingChannels(int plane, int channels) throws IOException, FormatException {
+        for (int c = 1; c < channels; c++) {
+            for (int t = 0; t < pendingTiles.size(); t++) {
+                Rectangle bounds = pendingTiles.get(t);
+                ImageProcessor tile = pendingChannels.getProcessor(t * (channels - 1) + c, bounds.width, bounds.height);
+                saveTile(plane, c, tile, bounds.x, bounds.y);
+            }
+        }
+        pendingChannels.dispose();
+        pendingChannels = null;
+        pendingTiles.clear();
+    }
+
+    private void writeTiles(int plane, ImageProcessor[] channels) throws IOException, FormatException {
+        // each channel is a TIFF plane of its own, written after the previous one
+        for (int c = 0; c < channels.length; c++) {
+            ImageProcessor channel = channels[c];
+            int planeWidth = channel.getWidth();
+            int planeHeight = channel.getHeight();
+            if (planeWidth <= tileSize && planeHeight <= tileSize) {
+                saveTile(plane, c, channel, 0, 0);
+                continue;
+            }
+            for (int y = 0; y < planeHeight; y += tileSize) {
+                for (int x = 0; x < planeWidth; x += tileSize) {
+                    channel.setRoi(x, y, Math.min(tileSize, planeWidth - x), Math.min(tileSize, planeHeight - y));
+                    saveTile(plane, c, channel.crop(), x, y);
+                }
+            }
+            channel.resetRoi();
+        }
+    }
+
+    private void saveTile(int plane, int channel, ImageProcessor tile, int x, int y) throws IOException, FormatException {
+        if (format.isRGB())
+            writer.saveBytes(plane, toInterleavedRGB(tile), x, y, tile.getWidth(), tile.getHeight());
+        else
+            writer.saveBytes(plane * format.getChannels() + channel, toSamples(tile, format.getBytesPerSample()), x, y, tile.getWidth(), tile.getHeight());
+    }
+
+    private static ImageProcessor downsample(ImageProcessor ip, int width, int height) {
+        ip.setInterpolationMethod(ImageProcessor.BILINEAR);
+        return ip.resize(width, height, true);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Writes the resolution levels (if any) after all the full resolution planes, as Bio-Formats expects, and closes the file
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            int slicesPerPlane = format.getSlicesPerImage();
+            for (int i = 0; i < levels.length; i++) {
+                writer.setResolution(i + 1);
+                for (int plane = 0; plane < levels[i].getSize() / slicesPerPlane; plane++) {
+                    ImageProcessor[] channels = new ImageProcessor[slicesPerPlane];
+                    for (int c = 0; c < slicesPerPlane; c++)
+                        channels[c] = levels[i].getProcessor(plane * slicesPerPlane + c + 1);
+                    writeTiles(plane, channels);
+                }
+            }
+        } catch (FormatException e) {
+            throw new IOException(e);
+        }
+        finally {
+            writer.close();
+            for (CompressedImageStack level : levels)
+                level.dispose();
+        }
+    }
+
+    private static byte[] toInterleavedRGB(ImageProcessor processor) {
+        int[] pixels = (int[])(processor instanceof ColorProcessor ? processor : processor.convertToRGB()).getPixels();
+        byte[] bytes = new byte[pixels.length * 3];
+        for (int i = 0, j = 0; i < pixels.length; i++) {
+            bytes[j++] = (byte)(pixels[i] >> 16);
+            bytes[j++] = (byte)(pixels[i] >> 8);
+            bytes[j++] = (byte)pixels[i];
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the samples of the given channel, big-endian as declared in the metadata
+     */
+    private static byte[] toSamples(ImageProcessor channel, int bytesPerSample) {
+        int pixelCount = channel.getPixelCount();
+        Object pixels = channel.getPixels();
+        if (pixels instanceof byte[])
+            return (byte[])pixels;
+        byte[] bytes = new byte[pixelCount * bytesPerSample];
+        if (pixels instanceof short[]) {
+            short[] samples = (short[])pixels;
+            for (int i = 0, j = 0; i < pixelCount; i++, j += 2) {
+                bytes[j] = (byte)(samples[i] >> 8);
+                bytes[j + 1] = (byte)samples[i];
+            }
+        }
+        else {
+            float[] samples = (float[])pixels;
+            for (int i = 0, j = 0; i < pixelCount; i++, j += 4) {
+                int bits = Float.floatToIntBits(samples[i]);
+                bytes[j] = (byte)(bits >> 24);
+                bytes[j + 1] = (byte)(bits >> 16);
+                bytes[j + 2] = (byte)(bits >> 8);
+                bytes[j + 3] = (byte)bits;
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,113 @@
+package DS4H;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the per-image work of an alignment on several threads at once.
+ * The number of threads is bounded both by the available cores and by the memory that each slice needs, so that the
+ * alignment never asks for more heap than the JVM can give. Results are handed back in the same order of the indexes,
+ * so slices land in the output stack in order.
+ */
+public class AlignmentEngine {
+    // part of the free heap that the engine is allowed to fill with in-flight slices
+    private static final double HEAP_FRACTION = 0.8;
+
+    private final int concurrency;
+
+    public interface SliceTask<T> {
+        T compute(int index) throws Exception;
+    }
+
+    public interface SliceConsumer<T> {
+        void accept(int index, T result) throws Exception;
+    }
+
+    /**
+     * @param bytesPerSlice the memory footprint of a single slice while it is being computed
+     */
+    public AlignmentEngine(long bytesPerSlice) {
+        this.concurrency = computeConcurrency(bytesPerSlice);
+    }
+
+    /**
+     * Returns how many slices can be processed at the same time, given the footprint of each one of them.
+     * One more slice is counted, since the result being consumed is still alive while the next ones are computed.
+     */
+    public static int computeConcurrency(long bytesPerSlice) {
+        Runtime runtime = Runtime.getRuntime();
+        long usedMemory = runtime.totalMemory() - runtime.freeMemory();
+        long availableMemory = (long)((runtime.maxMemory() - usedMemory) * HEAP_FRACTION);
+        long byMemory = bytesPerSlice <= 0 ? Long.MAX_VALUE : availableMemory / bytesPerSlice - 1;
+        return (int)Math.max(1, Math.min(runtime.availableProcessors(), byMemory));
+    }
+
+    /**
+     * Estimates the memory needed to warp an RGB image of sourcePixels pixels into a target of targetPixels pixels.
+     * The source is counted twice because the decoded AWT image and its ImageJ processor live together for a while.
+     */
+    public static long estimateSliceBytes(long sourcePixels, long targetPixels) {
+        return estimateSliceBytes(sourcePixels, targetPixels, Integer.BYTES);
+    }
+
+    /**
+     * Like estimateSliceBytes, for images whose pixels take the given number of bytes in memory (all channels included)
+     */
+    public static long estimateSliceBytes(long sourcePixels, long targetPixels, int bytesPerPixel) {
+        return sourcePixels * bytesPerPixel * 2 + targetPixels * bytesPerPixel;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Computes a slice for each one of the indexes, and passes every result to the consumer on the calling thread,
+     * in the same order of the indexes. At most "concurrency" slices are being computed while the consumer handles the
+     * previous one, so "concurrency" + 1 slices can be in memory at any given time.
+     */
+    public <T> void run(List<Integer> indexes, SliceTask<T> task, SliceConsumer<T> consumer) throws Exception {
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "DS4H-align-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        Deque<Future<T>> pending = new ArrayDeque<>();
+        try {
+            int submitted = 0;
+            for (int i = 0; i < indexes.size(); i++) {
+                while (submitted < indexes.size() && pending.size() < concurrency) {
+                    final int index = indexes.get(submitted++);
+                    pending.add(executor.submit(() -> task.compute(index)));
+                }
+                T result = await(pending.poll());
+                consumer.accept(indexes.get(i), result);
+            }
+        }
+        finally {
+            pending.forEach(future -> future.cancel(true));
+            executor.shutdownNow();
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        }
+        catch (ExecutionException e) {
+            // errors (e.g. OutOfMemoryError) are rethrown as they are, so that the usual handlers can manage them
+            if (e.getCause() instanceof Error)
+                throw (Error)e.getCause();
+            if (e.getCause() instanceof Exception)
+                throw (Exception)e.getCause();
+            throw e;
+        }
+    }
+}
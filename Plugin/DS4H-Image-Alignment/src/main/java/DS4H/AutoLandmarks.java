@@ -0,0 +1,215 @@
+package DS4H;
+
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.process.ImageProcessor;
+import mpicbg.ij.FeatureTransform;
+import mpicbg.ij.SIFT;
+import mpicbg.imagefeatures.Feature;
+import mpicbg.imagefeatures.FloatArray2DSIFT;
+import mpicbg.models.CoordinateTransform;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.SimilarityModel2D;
+
+import java.awt.*;
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Places the landmarks of all the images automatically. SIFT features are extracted from a reduced level of each image,
+ * and the features of each image are matched to the ones of the first image, keeping only the matches consistent with a
+ * single similarity transformation (RANSAC). The landmarks are then placed on the features of the first image matched in
+ * most images, spread over the whole image: where an image has no match for one of them, its landmark is placed by
+ * a moving least squares fit of its matches, so that every image gets the same landmarks.
+ * Features are extracted and matched on several images at once.
+ */
+public class AutoLandmarks {
+    // longest side in pixels of the images the features are extracted from
+    public static final String SIZE_PREFERENCE = "DS4H.autoLandmarksSize";
+    // landmarks placed on each image, at most
+    public static final String COUNT_PREFERENCE = "DS4H.autoLandmarksCount";
+    private static final int DEFAULT_SIZE = 1024;
+    private static final int DEFAULT_COUNT = 16;
+    // maximum ratio between the distances of the closest and of the second closest feature for a match to be kept
+    private static final double ROD = 0.92;
+    private static final int RANSAC_ITERATIONS = 1000;
+    // maximum distance of a match from the similarity transformation, relative to the longest side of the image: sections
+    // of the same sample are deformed locally, so a global model only fits them roughly
+    private static final double MAX_EPSILON = 0.02;
+    private static final double MIN_INLIER_RATIO = 0.05;
+    private static final int MIN_INLIERS = 7;
+
+    private final ImagesManager manager;
+    private final int size;
+    private final int count;
+
+    public AutoLandmarks(ImagesManager manager) {
+        this.manager = manager;
+        this.size = (int)Prefs.get(SIZE_PREFERENCE, DEFAULT_SIZE);
+        this.count = Math.max(LeastSquareImageTransformation.MINIMUM_ROI_NUMBER, (int)Prefs.get(COUNT_PREFERENCE, DEFAULT_COUNT));
+    }
+
+    /**
+     * Replaces the landmarks of all the images with the detected ones, and returns the indexes of the images that could
+     * not be matched to the first one: they are left without landmarks, to be placed by hand.
+     */
+    public List<Integer> detect() throws Exception {
+        int nImages = manager.getNImages();
+        List<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < nImages; i++)
+            indexes.add(i);
+
+        // the float image and the scale space built from it
+        long sliceBytes = (long)size * size * Float.BYTES * 8;
+        List<List<Feature>> features = new ArrayList<>();
+        new AlignmentEngine(sliceBytes).run(indexes, this::extractFeatures, (i, imageFeatures) -> features.add(imageFeatures));
+
+        List<Feature> referenceFeatures = features.get(0);
+        Map<Point2D, Integer> referenceIndexes = new HashMap<>();
+        for (int f = referenceFeatures.size() - 1; f >= 0; f--)
+            referenceIndexes.put(toPoint(referenceFeatures.get(f).location), f);
+        Dimension referenceDimension = manager.getImageFile(0).getWholeSlideDimension();
+        double epsilon = MAX_EPSILON * Math.max(referenceDimension.width, referenceDimension.height);
+
+        // for each image, the position of the reference features it has been matched to
+        List<Map<Integer, double[]>> matches = new ArrayList<>();
+        matches.add(null);
+        new AlignmentEngine(0).run(indexes.subList(1, nImages), i -> match(features.get(i), referenceFeatures, referenceIndexes, epsilon),
+                (i, imageMatches) -> matches.add(imageMatches));
+
+        List<Integer> landmarks = selectLandmarks(referenceFeatures, matches, referenceDimension);
+        if (landmarks.size() < LeastSquareImageTransformation.MINIMUM_ROI_NUMBER)
+            throw new IllegalArgumentException("The images do not share enough features to place the landmarks");
+
+        List<Integer> unmatched = new ArrayList<>();
+        manager.getLandmarks().forEach(Landmarks::reset);
+        for (int landmark : landmarks)
+            manager.addLandmark(0, toPoint(referenceFeatures.get(landmark).location));
+        for (int i = 1; i < nImages; i++) {
+            Map<Integer, double[]> imageMatches = matches.get(i);
+            if (imageMatches == null) {
+                unmatched.add(i);
+                continue;
+            }
+            CoordinateTransform fallback = fitMatches(imageMatches, referenceFeatures);
+            for (int landmark : landmarks) {
+                double[] location = imageMatches.get(landmark);
+                if (location == null)
+                    location = fallback.apply(referenceFeatures.get(landmark).location.clone());
+                manager.addLandmark(i, toPoint(location));
+            }
+        }
+        return unmatched;
+    }
+
+    /**
+     * Returns the features of the image at the given index, in the coordinates of its full resolution image
+     */
+    private List<Feature> extractFeatures(int index) throws Exception {
+        ImageFile imageFile = manager.getImageFile(index);
+        int localIndex = manager.getLocalIndex(index);
+
+        // the smallest level that is still at least as big as the features image, unless the editor image is smaller
+        List<Dimension> levels = imageFile.getResolutionLevels();
+        int level = levels.size() - 1;
+        while (level > 0 && Math.max(levels.get(level).width, levels.get(level).height) < size)
+            level--;
+        Dimension editorDimension = imageFile.getEditorImageDimension();
+        java.awt.image.BufferedImage image;
+        if ((long)levels.get(level).width * levels.get(level).height < (long)editorDimension.width * editorDimension.height)
+            image = imageFile.openLevelRegion(localIndex, level, new Rectangle(levels.get(level)));
+        else
+            image = imageFile.openEditorImage(localIndex);
+
+        ImageProcessor ip = new ImagePlus("", image).getProcessor().convertToFloat();
+        FloatArray2DSIFT.Param param = new FloatArray2DSIFT.Param();
+        param.maxOctaveSize = size;
+        List<Feature> features = new ArrayList<>();
+        new SIFT(new FloatArray2DSIFT(param)).extractFeatures(ip, features);
+
+        Dimension dimension = imageFile.getWholeSlideDimension();
+        double scaleX = dimension.getWidth() / ip.getWidth();
+        double scaleY = dimension.getHeight() / ip.getHeight();
+        for (Feature feature : features) {
+            feature.location[0] *= scaleX;
+            feature.location[1] *= scaleY;
+        }
+        return features;
+    }
+
+    /**
+     * Matches the given features to the reference ones, and returns the position of the matched reference features
+     * (by their index) in the image, or null if the image can't be matched
+     */
+    private static Map<Integer, double[]> match(List<Feature> features, List<Feature> referenceFeatures, Map<Point2D, Integer> referenceIndexes, double epsilon) throws Exception {
+        List<PointMatch> candidates = new ArrayList<>();
+        FeatureTransform.matchFeatures(features, referenceFeatures, candidates, ROD);
+        List<PointMatch> inliers = new ArrayList<>();
+        boolean found;
+        try {
+            found = new SimilarityModel2D().filterRansac(candidates, inliers, RANSAC_ITERATIONS, epsilon, MIN_INLIER_RATIO, MIN_INLIERS);
+        }
+        catch (Exception e) {
+            // NotEnoughDataPointsException: too few candidates to even try
+            found = false;
+        }
+        if (!found)
+            return null;
+
+        Map<Integer, double[]> matches = new HashMap<>();
+        for (PointMatch inlier : inliers) {
+            Integer reference = referenceIndexes.get(toPoint(inlier.getP2().getL()));
+            if (reference != null)
+                matches.putIfAbsent(reference, inlier.getP1().getL().clone());
+        }
+        return matches.size() < LeastSquareImageTransformation.MINIMUM_ROI_NUMBER ? null : matches;
+    }
+
+    /**
+     * Returns the reference features to place the landmarks on: the ones matched in most images first, skipping the
+     * ones too close to those already chosen, so that the landmarks cover the whole image
+     */
+    private List<Integer> selectLandmarks(List<Feature> referenceFeatures, List<Map<Integer, double[]>> matches, Dimension dimension) {
+        int[] matchCounts = new int[referenceFeatures.size()];
+        for (Map<Integer, double[]> imageMatches : matches)
+            if (imageMatches != null)
+                imageMatches.keySet().forEach(reference -> matchCounts[reference]++);
+        List<Integer> candidates = new ArrayList<>();
+        for (int f = 0; f < matchCounts.length; f++)
+            if (matchCounts[f] > 0)
+                candidates.add(f);
+        candidates.sort((a, b) -> Integer.compare(matchCounts[b], matchCounts[a]));
+
+        double minDistance = Math.max(dimension.width, dimension.height) / (2 * Math.sqrt(count));
+        List<Integer> landmarks = new ArrayList<>();
+        for (int candidate : candidates) {
+            if (landmarks.size() == count)
+                break;
+            Point2D point = toPoint(referenceFeatures.get(candidate).location);
+            if (landmarks.stream().allMatch(landmark -> toPoint(referenceFeatures.get(landmark).location).distance(point) >= minDistance))
+                landmarks.add(candidate);
+        }
+        return landmarks;
+    }
+
+    /**
+     * Fits the transformation from the reference image to an image through its matches
+     */
+    private static CoordinateTransform fitMatches(Map<Integer, double[]> matches, List<Feature> referenceFeatures) throws Exception {
+        List<Point> referencePoints = new ArrayList<>();
+        List<Point> imagePoints = new ArrayList<>();
+        matches.forEach((reference, location) -> {
+            referencePoints.add(new Point(referenceFeatures.get(reference).location.clone()));
+            imagePoints.add(new Point(location.clone()));
+        });
+        return LeastSquareImageTransformation.fit(referencePoints, imagePoints, true);
+    }
+
+    private static Point2D toPoint(double[] location) {
+        return new Point2D.Double(location[0], location[1]);
+    }
+}
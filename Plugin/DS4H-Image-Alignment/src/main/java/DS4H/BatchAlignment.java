@@ -0,0 +1,203 @@
+package DS4H;
+
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.awt.*;
+import java.awt.geom.Point2D;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Aligns images with landmarks read from CSV files (see LandmarkCsv), without any user interface, so that it can be run
+ * from scripts or from the command line of a headless Fiji, e.g.
+ * ImageJ-linux64 --headless --run "DSH4 Image Alignment (batch)" "input='/data/slides',landmarks='/data/slides',output='/data/aligned'"
+ * <p>
+ * The input is either a file, aligned onto the output file (or onto a file of the output directory named after it, if
+ * the output is an existing directory), or a directory: each of its files is aligned onto a file of
+ * the output directory, named after it, using the landmark file of the same name (with the csv extension) found in the
+ * landmarks directory, or beside the file if no landmarks directory is given. A file that can't be aligned is reported
+ * and skipped. Files without a landmark file are aligned with the landmarks placed on them in the editor, if any, or
+ * with landmarks found by AutoLandmarks if autoLandmarks is set. With refineLandmarks, the landmarks are moved onto their
+ * exact match at full resolution by LandmarkRefiner before aligning, and with coarseToFine they are first matched on the
+ * resolution levels of the images by CoarseToFineRegistration.
+ * As in the editor without "Keep all pixel data", all the images are aligned onto the first one of their file. Images
+ * too big for ImageJ are aligned tile by tile and streamed to the output file, as the editor offers to do.
+ */
+@Plugin(type = Command.class, headless = true,
+        menuPath = "Plugins>Registration>DSH4 Image Alignment (batch)")
+public class BatchAlignment implements Command {
+    // extensions made of several parts, removed as a whole from the names of the images
+    private static final String[] COMPOUND_EXTENSIONS = { ".ome.tiff", ".ome.tif", ".ome.btf", ".ome.tf2", ".ome.tf8", ".ome.zarr" };
+
+    @Parameter(label = "Images (file or directory)")
+    private File input;
+
+    @Parameter(label = "Landmarks (CSV file or directory)", required = false)
+    private File landmarks;
+
+    @Parameter(label = "Aligned images (file or directory)")
+    private File output;
+
+    @Parameter(label = "Transformation", choices = {"Moving least squares", "Affine", "Similarity", "Rigid"})
+    private String model = TransformationModel.MOVING_LEAST_SQUARES.toString();
+
+    @Parameter(label = "Apply image rotation")
+    private boolean rotate = true;
+
+    @Parameter(label = "Keep original pixel type")
+    private boolean keepPixelType = true;
+
+    @Parameter(label = "Pyramidal output")
+    private boolean pyramidal = false;
+
+    @Parameter(label = "Find the landmarks of files without any")
+    private boolean autoLandmarks = false;
+
+    @Parameter(label = "Refine the landmarks at full resolution")
+    private boolean refineLandmarks = false;
+
+    @Parameter(label = "Coarse-to-fine registration")
+    private boolean coarseToFine = false;
+
+    @Parameter
+    private LogService log;
+
+    @Override
+    public void run() {
+        if (!input.isDirectory()) {
+            File landmarkFile = landmarks == null || landmarks.isDirectory() ? getLandmarkFile(input) : landmarks;
+            try {
+                align(input, landmarkFile, output.isDirectory() ? new File(output, getBaseName(input) + "_aligned.ome.tiff") : output);
+            }
+            catch (Exception e) {
+                log.error("Could not align " + input, e);
+            }
+            return;
+        }
+
+        if (!output.isDirectory() && !output.mkdirs()) {
+            log.error("Could not create the output directory " + output);
+            return;
+        }
+        File[] files = input.listFiles(file -> file.isFile() && !file.isHidden() && !file.getName().toLowerCase().endsWith(".csv") &&
+                !file.getName().endsWith(LandmarkStore.EXTENSION) && !file.getName().endsWith(LandmarkStore.EXTENSION + ".tmp"));
+        if (files == null)
+            return;
+        Arrays.sort(files);
+        int aligned = 0;
+        for (File file : files) {
+            File landmarkFile = getLandmarkFile(file);
+            if (!autoLandmarks && !landmarkFile.isFile() && !LandmarkStore.getFile(file.getPath()).isFile()) {
+                log.warn("Skipping " + file + ": no landmarks in " + landmarkFile + " nor in the editor ones");
+                continue;
+            }
+            try {
+                align(file, landmarkFile, new File(output, getBaseName(file) + "_aligned.ome.tiff"));
+                aligned++;
+            }
+            catch (Exception e) {
+                log.error("Could not align " + file, e);
+            }
+        }
+        log.info("Aligned " + aligned + " of " + files.length + " files in " + input);
+    }
+
+    /**
+     * Aligns the images of the given file with the landmarks of the given CSV file, writing them to the given path.
+     * Without a CSV file, the landmarks placed in the editor (see LandmarkStore) are used.
+     */
+    public void align(File imageFile, File landmarkFile, File alignedFile) throws Exception {
+        log.info("Aligning " + imageFile + " to " + alignedFile);
+        long start = System.currentTimeMillis();
+        ImagesManager manager = new ImagesManager(imageFile.getPath());
+        try {
+            List<Landmarks> imageLandmarks = manager.getLandmarks();
+            if (landmarkFile != null && landmarkFile.isFile()) {
+                Map<Integer, List<Point2D>> points = LandmarkCsv.read(landmarkFile);
+                imageLandmarks.forEach(Landmarks::reset);
+                for (int i = 0; i < manager.getNImages(); i++)
+                    for (Point2D point : points.getOrDefault(i, Collections.emptyList()))
+                        manager.addLandmark(i, point);
+                if (points.keySet().stream().anyMatch(index -> index >= manager.getNImages()))
+                    log.warn(landmarkFile + " has landmarks for images beyond the " + manager.getNImages() + " of " + imageFile);
+            }
+            else if (autoLandmarks && imageLandmarks.stream().allMatch(planeLandmarks -> planeLandmarks.getCount() == 0)) {
+                List<Integer> unmatched = new AutoLandmarks(manager).detect();
+                if (!unmatched.isEmpty())
+                    throw new IllegalArgumentException("No landmarks found for images " + unmatched.stream().map(index -> String.valueOf(index + 1)).collect(Collectors.joining(", ")));
+                // kept beside the file, so that they can be checked and corrected in the editor
+                manager.saveLandmarks();
+            }
+            for (int i = 0; i < imageLandmarks.size(); i++) {
+                int count = imageLandmarks.get(i).getCount();
+                if (count < LeastSquareImageTransformation.MINIMUM_ROI_NUMBER)
+                    throw new IllegalArgumentException("Image " + (i + 1) + " needs at least " + LeastSquareImageTransformation.MINIMUM_ROI_NUMBER + " landmarks");
+                if (count != imageLandmarks.get(0).getCount())
+                    throw new IllegalArgumentException("Image " + (i + 1) + " has " + count + " landmarks instead of " + imageLandmarks.get(0).getCount());
+            }
+
+            if (coarseToFine)
+                log.info("Matched " + new CoarseToFineRegistration(manager).register() + " landmarks of " + imageFile + " on its resolution levels");
+            if (refineLandmarks)
+                log.info("Refined " + new LandmarkRefiner(manager).refine() + " landmarks of " + imageFile);
+
+            PixelFormat format = keepPixelType ? manager.getPixelFormat() : PixelFormat.RGB;
+            StackAlignment alignment = new StackAlignment(manager, rotate, getModel(), format, pyramidal);
+            if (alignment.isOversize()) {
+                log.info(imageFile + " is too big to be aligned at once: aligning it tile by tile");
+                alignTiled(manager, format, alignedFile);
+            }
+            else
+                alignment.write(alignedFile.getPath());
+        }
+        finally {
+            manager.dispose();
+        }
+        log.info("Aligned " + imageFile + " in " + (System.currentTimeMillis() - start) / 1000.0 + " s");
+    }
+
+    /**
+     * Aligns the images onto the first one tile by tile, streaming them to the given file, as the editor does for images
+     * too big for ImageJ
+     */
+    private void alignTiled(ImagesManager manager, PixelFormat format, File alignedFile) throws Exception {
+        TiledImageTransformation transformation = new TiledImageTransformation(manager, 0, rotate, getModel(), format);
+        Dimension dimension = transformation.getTargetDimension();
+        int[] pyramidFactors = pyramidal ? AlignedImageWriter.getStreamingPyramidFactors(dimension.width, dimension.height, format) : new int[0];
+        try (AlignedImageWriter writer = new AlignedImageWriter(alignedFile.getPath(), dimension.width, dimension.height, manager.getNImages(),
+                manager.getImageFile(0).getMetadata(), pyramidFactors, format)) {
+            transformation.transform(writer);
+        }
+    }
+
+    private TransformationModel getModel() {
+        return Arrays.stream(TransformationModel.values()).filter(value -> value.toString().equals(model)).findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("Unknown transformation: " + model));
+    }
+
+    private File getLandmarkFile(File imageFile) {
+        File directory = landmarks != null && landmarks.isDirectory() ? landmarks : imageFile.getParentFile();
+        return new File(directory, getBaseName(imageFile) + ".csv");
+    }
+
+    /**
+     * Returns the name of the given file without its extension, so that slide.ome.tiff is just slide but the dots of
+     * names like slide.2024.01.svs are kept
+     */
+    private static String getBaseName(File file) {
+        String name = file.getName();
+        String lowerCaseName = name.toLowerCase();
+        for (String extension : COMPOUND_EXTENSIONS)
+            if (lowerCaseName.endsWith(extension) && name.length() > extension.length())
+                return name.substring(0, name.length() - extension.length());
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+}
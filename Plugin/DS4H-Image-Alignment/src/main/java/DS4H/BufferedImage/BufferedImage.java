@@ -2,9 +2,12 @@ package DS4H.BufferedImage;
 
 
 import DS4H.BufferedImage.event.RoiSelectedEvent;
+import DS4H.ImageFile;
+import DS4H.Landmarks;
 import DS4H.MainDialog.MainDialog;
 import DS4H.Utilities;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.gui.Roi;
 import ij.plugin.frame.RoiManager;
 
@@ -22,22 +25,36 @@ import java.util.stream.Collectors;
  * Class that represents an image inside the DH4S alignment program.
  */
 public class BufferedImage extends ImagePlus {
+    private Landmarks landmarks;
     private RoiManager manager;
     private Roi[] roisBackup;
     private boolean isReduced;
     private Dimension reducedImageDimensions;
     private String filePath;
+    private ImageFile imageFile;
+    private int imageIndex;
     private OnBufferedImageEventListener listener;
-    public BufferedImage(String text, Image image, RoiManager manager, boolean isReduced) {
+    public BufferedImage(String text, Image image, Landmarks landmarks, boolean isReduced) {
         super(text, image);
-        this.manager = manager;
+        this.landmarks = landmarks;
+        this.manager = landmarks.getRoiManager();
         this.isReduced = isReduced;
         this.buildMouseListener();
     }
 
-    public BufferedImage(String text, Image image, RoiManager manager, Dimension reduceImageDimensions) {
+    public BufferedImage(String text, Image image, Landmarks landmarks, Dimension reduceImageDimensions) {
         super(text, image);
-        this.manager = manager;
+        this.landmarks = landmarks;
+        this.manager = landmarks.getRoiManager();
+        this.isReduced = true;
+        this.reducedImageDimensions = reduceImageDimensions;
+        this.buildMouseListener();
+    }
+
+    public BufferedImage(String text, ImageStack stack, Landmarks landmarks, Dimension reduceImageDimensions) {
+        super(text, stack);
+        this.landmarks = landmarks;
+        this.manager = landmarks.getRoiManager();
         this.isReduced = true;
         this.reducedImageDimensions = reduceImageDimensions;
         this.buildMouseListener();
@@ -45,6 +62,9 @@ public class BufferedImage extends ImagePlus {
 
     final protected MouseListener[] mouseAdapter = {null};
     public void buildMouseListener() {
+        // images of headless runs are never shown
+        if (GraphicsEnvironment.isHeadless())
+            return;
         final Roi[] startingRoi = {null};
         Utilities.setTimeout(() -> {
             this.mouseAdapter[0] = new MouseAdapter() {
@@ -103,10 +123,17 @@ public class BufferedImage extends ImagePlus {
         this.listener = listener;
     }
 
+    /**
+     * Returns the RoiManager the editor draws the landmarks from, or null in headless runs
+     */
     public RoiManager getManager() {
         return this.manager;
     }
 
+    public Landmarks getLandmarks() {
+        return this.landmarks;
+    }
+
     public void restoreRois() {
         Arrays.stream(this.roisBackup).forEach(roi -> manager.add(this, roi, 0));
     }
@@ -131,6 +158,22 @@ public class BufferedImage extends ImagePlus {
         this.filePath = filePath;
     }
 
+    /**
+     * Sets the file (and the index inside it) this image has been read from, so that other resolution levels of it can be read
+     */
+    public void setImageFile(ImageFile imageFile, int imageIndex) {
+        this.imageFile = imageFile;
+        this.imageIndex = imageIndex;
+    }
+
+    public ImageFile getImageFile() {
+        return imageFile;
+    }
+
+    public int getImageIndex() {
+        return imageIndex;
+    }
+
     boolean copyCornersMode;
     public void setCopyCornersMode() {
         this.copyCornersMode = true;
@@ -0,0 +1,60 @@
+package DS4H;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Registers the images from their smallest resolution level up, before aligning them. The landmarks are first matched
+ * on the smallest level, searching as far as the clicking error of the editor, then matched again on each bigger level
+ * only a few pixels around their previous match (see LandmarkRefiner). Each level only has to correct the error left by
+ * the previous one, so the search stays small however big the images are, and no full resolution pixel is read until
+ * the images are warped.
+ * The levels are the ones of the first image (see ImageFile.getResolutionLevels), down to the biggest one below full
+ * resolution: the other images are read from their own levels closest to them.
+ */
+public class CoarseToFineRegistration {
+    // smallest side in pixels of the levels the landmarks are matched on: smaller ones have too few details to match
+    private static final int MIN_LEVEL_SIZE = 512;
+    // pixels searched around the previous match, besides the size of a pixel of the previous level
+    private static final int SEARCH_RADIUS = 2;
+
+    private final ImagesManager manager;
+
+    public CoarseToFineRegistration(ImagesManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * Returns the scales of the levels the landmarks are matched on (full resolution pixels for each pixel of the
+     * level), smallest level first. There are none if the first image has no levels below full resolution.
+     */
+    public List<Double> getScales() {
+        ImageFile imageFile = manager.getImageFile(0);
+        Dimension dimension = imageFile.getWholeSlideDimension();
+        List<Dimension> levels = imageFile.getResolutionLevels();
+        List<Double> scales = new ArrayList<>();
+        for (int level = levels.size() - 1; level > 0; level--) {
+            Dimension levelDimension = levels.get(level);
+            if (Math.min(levelDimension.width, levelDimension.height) >= MIN_LEVEL_SIZE)
+                scales.add(dimension.getWidth() / levelDimension.width);
+        }
+        return scales;
+    }
+
+    /**
+     * Matches the landmarks of all the images but the first one on each level, and returns how many have been matched
+     * on the last one
+     */
+    public int register() throws Exception {
+        LandmarkRefiner refiner = new LandmarkRefiner(manager);
+        int refined = 0;
+        double previousScale = 0;
+        for (double scale : getScales()) {
+            int radius = previousScale == 0 ? 0 : SEARCH_RADIUS + (int)Math.ceil(previousScale / scale);
+            refined = refiner.refine(scale, radius);
+            previousScale = scale;
+        }
+        return refined;
+    }
+}
@@ -0,0 +1,474 @@
+package DS4H;
+
+import ij.IJ;
+import ij.VirtualStack;
+import ij.Prefs;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.image.ColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A stack that keeps its slices in memory, losslessly compressed, and decompresses them only when they are requested.
+ * When the compressed slices exceed the memory budget, the ones that do not fit anymore are written to a temporary file.
+ * It replaces the round trip through the temporary TIFF files of a plain VirtualStack, where each pixel is encoded and decoded several times.
+ * It still extends VirtualStack, since this is what ImageJ expects from a stack whose slices are produced on demand.
+ */
+public class CompressedImageStack extends VirtualStack {
+    // Memory budget of the compressed slices in MB. When not set, a quarter of the maximum heap is used
+    public static final String BUDGET_PREFERENCE = "DS4H.compressedStackBudget";
+    private static final double DEFAULT_BUDGET_FRACTION = 0.25;
+
+    private static final byte BYTE_PIXELS = 1;
+    private static final byte SHORT_PIXELS = 2;
+    private static final byte FLOAT_PIXELS = 3;
+    private static final byte RGB_PIXELS = 4;
+    // type and number of pixels of a compressed slice
+    private static final int HEADER_BYTES = 5;
+    // pixels shuffled at a time before being compressed: the shuffle only groups the bytes of the pixels of a chunk
+    private static final int CHUNK_PIXELS = 1 << 16;
+    private static final int BLOCK_SIZE = 1 << 20;
+    // some virtual machines reserve a few words at the end of the biggest arrays
+    private static final long MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private final List<Slice> slices = new ArrayList<>();
+    private final long budget;
+    private long memoryUsage = 0;
+    private long spilledBytes = 0;
+    private int bitDepth = 0;
+    private RandomAccessFile spillFile;
+    private File spillPath;
+
+    /**
+     * A compressed slice. It can be created on any thread with {@link #compress(String, ImageProcessor)}, and added to the stack later
+     */
+    public static class Slice {
+        private String label;
+        private byte[] data;
+        private long spillOffset = -1;
+        private int spillLength;
+
+        private Slice(String label, byte[] data) {
+            this.label = label;
+            this.data = data;
+        }
+
+        /**
+         * Returns the compressed pixels, as long as the slice has not been moved to disk by a stack
+         */
+        public byte[] getData() {
+            return data;
+        }
+    }
+
+    public CompressedImageStack(int width, int height, ColorModel cm) {
+        this(width, height, cm, getDefaultBudget());
+    }
+
+    public CompressedImageStack(int width, int height, ColorModel cm, long budget) {
+        super(width, height, cm, IJ.getDir("temp"));
+        this.budget = budget;
+    }
+
+    private static long getDefaultBudget() {
+        long budget = (long)Prefs.get(BUDGET_PREFERENCE, 0) * 1024 * 1024;
+        return budget > 0 ? budget : (long)(Runtime.getRuntime().maxMemory() * DEFAULT_BUDGET_FRACTION);
+    }
+
+    /**
+     * Compresses the pixels of the given processor
+     */
+    public static Slice compress(String label, ImageProcessor ip) {
+        return new Slice(label, encode(ip.getPixels()));
+    }
+
+    /**
+     * Returns a slice of pixels already compressed by {@link #compress(String, ImageProcessor)}, as returned by Slice.getData
+     */
+    public static Slice fromData(String label, byte[] data) {
+        return new Slice(label, data);
+    }
+
+    /**
+     * Decompresses a slice that has not been added to a stack yet
+     */
+    public static ImageProcessor decompress(Slice slice, int width, int height) {
+        return createProcessor(decode(slice.data), width, height, null);
+    }
+
+    public synchronized void addSlice(Slice slice) {
+        addSlice(slice, slices.size());
+    }
+
+    private void addSlice(Slice slice, int index) {
+        if (bitDepth == 0) {
+            byte type = slice.data[0];
+            bitDepth = type == BYTE_PIXELS ? 8 : type == SHORT_PIXELS ? 16 : type == FLOAT_PIXELS ? 32 : 24;
+        }
+        slices.add(index, slice);
+        memoryUsage += slice.data.length;
+        spillIfNeeded();
+    }
+
+    @Override
+    public void addSlice(String sliceLabel, ImageProcessor ip) {
+        if (ip.getWidth() != getWidth() || ip.getHeight() != getHeight())
+            throw new IllegalArgumentException("Dimensions do not match");
+        addSlice(compress(sliceLabel, ip));
+    }
+
+    @Override
+    public void addSlice(String sliceLabel, Object pixels) {
+        addSlice(new Slice(sliceLabel, encode(pixels)));
+    }
+
+    @Override
+    public synchronized void addSlice(String sliceLabel, ImageProcessor ip, int n) {
+        addSlice(compress(sliceLabel, ip), n);
+    }
+
+    @Override
+    public synchronized void deleteSlice(int n) {
+        Slice slice = slices.remove(n - 1);
+        if (slice.data != null)
+            memoryUsage -= slice.data.length;
+    }
+
+    @Override
+    public void deleteLastSlice() {
+        if (getSize() > 0)
+            deleteSlice(getSize());
+    }
+
+    @Override
+    public synchronized Object getPixels(int n) {
+        return decode(read(slices.get(n - 1)));
+    }
+
+    @Override
+    public synchronized void setPixels(Object pixels, int n) {
+        Slice slice = slices.get(n - 1);
+        if (slice.data != null)
+            memoryUsage -= slice.data.length;
+        slice.data = encode(pixels);
+        slice.spillOffset = -1;
+        memoryUsage += slice.data.length;
+        spillIfNeeded();
+    }
+
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        return getProcessor(n, getWidth(), getHeight());
+    }
+
+    /**
+     * Returns a slice added with its own size, such as a tile at the border of an image
+     */
+    public ImageProcessor getProcessor(int n, int width, int height) {
+        return createProcessor(getPixels(n), width, height, getColorModel());
+    }
+
+    private static ImageProcessor createProcessor(Object pixels, int width, int height, ColorModel cm) {
+        if (pixels instanceof byte[])
+            return new ByteProcessor(width, height, (byte[])pixels, cm);
+        else if (pixels instanceof short[])
+            return new ShortProcessor(width, height, (short[])pixels, cm);
+        else if (pixels instanceof float[])
+            return new FloatProcessor(width, height, (float[])pixels, cm);
+        else
+            return new ColorProcessor(width, height, (int[])pixels);
+    }
+
+    @Override
+    public synchronized int getSize() {
+        return slices.size();
+    }
+
+    @Override
+    public synchronized String getSliceLabel(int n) {
+        return slices.get(n - 1).label;
+    }
+
+    @Override
+    public synchronized void setSliceLabel(String label, int n) {
+        slices.get(n - 1).label = label;
+    }
+
+    @Override
+    public String[] getSliceLabels() {
+        String[] labels = new String[getSize()];
+        for (int i = 0; i < labels.length; i++)
+            labels[i] = getSliceLabel(i + 1);
+        return labels;
+    }
+
+    @Override
+    public String getFileName(int n) {
+        return getSliceLabel(n);
+    }
+
+    @Override
+    public int getBitDepth() {
+        return bitDepth;
+    }
+
+    /**
+     * Returns the memory currently used by the compressed slices that have not been written to disk
+     */
+    public synchronized long getMemoryUsage() {
+        return memoryUsage;
+    }
+
+    /**
+     * Returns the bytes written to the temporary file so far by the slices that did not fit in memory
+     */
+    public synchronized long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * Releases the temporary file used by the slices that did not fit in memory
+     */
+    public synchronized void dispose() {
+        slices.clear();
+        memoryUsage = 0;
+        if (spillFile == null)
+            return;
+        try {
+            spillFile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        spillPath.delete();
+        spillFile = null;
+    }
+
+    private void spillIfNeeded() {
+        // the oldest slices are moved to disk first: they are the ones that are less likely to be shown again soon
+        for (int i = 0; i < slices.size() && memoryUsage > budget; i++) {
+            Slice slice = slices.get(i);
+            if (slice.data == null)
+                continue;
+            try {
+                if (spillFile == null) {
+                    spillPath = File.createTempFile("DS4H-stack", ".bin", new File(IJ.getDir("temp")));
+                    spillPath.deleteOnExit();
+                    spillFile = new RandomAccessFile(spillPath, "rw");
+                }
+                slice.spillOffset = spillFile.length();
+                slice.spillLength = slice.data.length;
+                spillFile.seek(slice.spillOffset);
+                spillFile.write(slice.data);
+                spilledBytes += slice.data.length;
+                memoryUsage -= slice.data.length;
+                slice.data = null;
+            } catch (IOException e) {
+                // if the slice can't be written to disk, just keep it in memory
+                e.printStackTrace();
+                return;
+            }
+        }
+    }
+
+    private byte[] read(Slice slice) {
+        if (slice.data != null)
+            return slice.data;
+        try {
+            byte[] data = new byte[slice.spillLength];
+            spillFile.seek(slice.spillOffset);
+            spillFile.readFully(data);
+            return data;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns true if a slice of the given number of pixels, each one taking the given number of bytes in its processor,
+     * can be compressed in any case: the compressed pixels are held by a single array, and incompressible pixels
+     * take a little more than their size. Bigger slices can only be processed tile by tile.
+     */
+    public static boolean fits(long pixels, int bytesPerPixel) {
+        long size = pixels * bytesPerPixel;
+        // deflate adds 5 bytes for each stored block of at most 16383 bytes, plus the header of the slice
+        return size + 5 * (size / 16383 + 1) + HEADER_BYTES <= MAX_ARRAY_SIZE;
+    }
+
+    /**
+     * Serializes the pixels with the bytes of each pixel grouped by significance (as a "shuffle" filter does), since this
+     * makes neighbouring pixels much more compressible, and then compresses them with the fastest deflate level.
+     * The pixels are shuffled a chunk at a time and compressed straight away, so that no copy of the whole slice is made
+     * besides the compressed one.
+     */
+    private static byte[] encode(Object pixels) {
+        byte type;
+        int length, bytesPerPixel;
+        if (pixels instanceof byte[]) {
+            type = BYTE_PIXELS;
+            length = ((byte[])pixels).length;
+            bytesPerPixel = 1;
+        }
+        else if (pixels instanceof short[]) {
+            type = SHORT_PIXELS;
+            length = ((short[])pixels).length;
+            bytesPerPixel = 2;
+        }
+        else if (pixels instanceof float[]) {
+            type = FLOAT_PIXELS;
+            length = ((float[])pixels).length;
+            bytesPerPixel = 4;
+        }
+        else {
+            type = RGB_PIXELS;
+            length = ((int[])pixels).length;
+            bytesPerPixel = 4;
+        }
+        if (!fits(length, bytesPerPixel))
+            throw new IllegalArgumentException("Slices of " + length + " pixels are too big to be compressed");
+
+        // the compressed pixels are collected in blocks, and copied once into an array of their exact size
+        List<byte[]> blocks = new ArrayList<>();
+        byte[] block = new byte[BLOCK_SIZE];
+        block[0] = type;
+        block[1] = (byte)(length >>> 24);
+        block[2] = (byte)(length >>> 16);
+        block[3] = (byte)(length >>> 8);
+        block[4] = (byte)length;
+        int blockLength = HEADER_BYTES;
+        long size = 0;
+
+        byte[] shuffled = new byte[Math.min(length, CHUNK_PIXELS) * bytesPerPixel];
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            if (length == 0)
+                deflater.finish();
+            for (int from = 0; from < length || !deflater.finished(); ) {
+                if (deflater.needsInput() && from < length) {
+                    int count = Math.min(CHUNK_PIXELS, length - from);
+                    shuffle(pixels, from, count, shuffled);
+                    deflater.setInput(shuffled, 0, count * bytesPerPixel);
+                    from += count;
+                    if (from == length)
+                        deflater.finish();
+                }
+                if (blockLength == block.length) {
+                    blocks.add(block);
+                    size += block.length;
+                    block = new byte[BLOCK_SIZE];
+                    blockLength = 0;
+                }
+                blockLength += deflater.deflate(block, blockLength, block.length - blockLength);
+            }
+        }
+        finally {
+            deflater.end();
+        }
+
+        byte[] data = new byte[(int)(size + blockLength)];
+        int offset = 0;
+        for (byte[] full : blocks) {
+            System.arraycopy(full, 0, data, offset, full.length);
+            offset += full.length;
+        }
+        System.arraycopy(block, 0, data, offset, blockLength);
+        return data;
+    }
+
+    /**
+     * Stores the count pixels from the given one with their bytes grouped by significance: the least significant byte of
+     * every pixel first, then the next one, and so on
+     */
+    private static void shuffle(Object pixels, int from, int count, byte[] shuffled) {
+        if (pixels instanceof byte[]) {
+            System.arraycopy(pixels, from, shuffled, 0, count);
+        }
+        else if (pixels instanceof short[]) {
+            short[] shorts = (short[])pixels;
+            for (int i = 0; i < count; i++) {
+                int value = shorts[from + i];
+                shuffled[i] = (byte)value;
+                shuffled[count + i] = (byte)(value >>> 8);
+            }
+        }
+        else {
+            int[] ints = pixels instanceof int[] ? (int[])pixels : null;
+            float[] floats = ints == null ? (float[])pixels : null;
+            for (int i = 0; i < count; i++) {
+                int value = ints != null ? ints[from + i] : Float.floatToRawIntBits(floats[from + i]);
+                shuffled[i] = (byte)value;
+                shuffled[count + i] = (byte)(value >>> 8);
+                shuffled[2 * count + i] = (byte)(value >>> 16);
+                shuffled[3 * count + i] = (byte)(value >>> 24);
+            }
+        }
+    }
+
+    private static Object decode(byte[] data) {
+        byte type = data[0];
+        int length = ((data[1] & 0xff) << 24) | ((data[2] & 0xff) << 16) | ((data[3] & 0xff) << 8) | (data[4] & 0xff);
+        int bytesPerPixel = type == BYTE_PIXELS ? 1 : type == SHORT_PIXELS ? 2 : 4;
+        Object pixels = type == BYTE_PIXELS ? new byte[length] : type == SHORT_PIXELS ? new short[length] :
+                type == FLOAT_PIXELS ? new float[length] : new int[length];
+
+        byte[] shuffled = new byte[Math.min(length, CHUNK_PIXELS) * bytesPerPixel];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, HEADER_BYTES, data.length - HEADER_BYTES);
+            for (int from = 0; from < length; ) {
+                int count = Math.min(CHUNK_PIXELS, length - from);
+                int chunkLength = count * bytesPerPixel;
+                for (int offset = 0; offset < chunkLength; ) {
+                    int inflated = inflater.inflate(shuffled, offset, chunkLength - offset);
+                    if (inflated == 0 && (inflater.finished() || inflater.needsInput()))
+                        throw new DataFormatException("The compressed slice is truncated");
+                    offset += inflated;
+                }
+                unshuffle(shuffled, count, pixels, from);
+                from += count;
+            }
+        } catch (DataFormatException e) {
+            throw new RuntimeException(e);
+        }
+        finally {
+            inflater.end();
+        }
+        return pixels;
+    }
+
+    /**
+     * Reverses shuffle, storing the count pixels from the given one
+     */
+    private static void unshuffle(byte[] shuffled, int count, Object pixels, int from) {
+        if (pixels instanceof byte[]) {
+            System.arraycopy(shuffled, 0, pixels, from, count);
+        }
+        else if (pixels instanceof short[]) {
+            short[] shorts = (short[])pixels;
+            for (int i = 0; i < count; i++)
+                shorts[from + i] = (short)((shuffled[i] & 0xff) | (shuffled[count + i] & 0xff) << 8);
+        }
+        else {
+            int[] ints = pixels instanceof int[] ? (int[])pixels : null;
+            float[] floats = ints == null ? (float[])pixels : null;
+            for (int i = 0; i < count; i++) {
+                int value = (shuffled[i] & 0xff) | (shuffled[count + i] & 0xff) << 8 |
+                        (shuffled[2 * count + i] & 0xff) << 16 | (shuffled[3 * count + i] & 0xff) << 24;
+                if (ints != null)
+                    ints[from + i] = value;
+                else
+                    floats[from + i] = Float.intBitsToFloat(value);
+            }
+        }
+    }
+}
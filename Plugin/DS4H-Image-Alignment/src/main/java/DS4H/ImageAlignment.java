@@ -19,14 +19,13 @@ import DS4H.RemoveDialog.event.IRemoveDialogEvent;
 import ij.*;
 import ij.gui.*;
 
-import ij.io.FileSaver;
 import ij.io.OpenDialog;
 import ij.io.SaveDialog;
 import ij.plugin.frame.RoiManager;
 import ij.process.ColorProcessor;
-import ij.process.ImageConverter;
 import ij.process.ImageProcessor;
 import io.scif.services.DatasetIOService;
+import loci.formats.FormatException;
 import loci.formats.UnknownFormatException;
 import net.imagej.Dataset;
 import org.scijava.AbstractContextual;
@@ -40,19 +39,21 @@ import net.imagej.ImageJ;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.ColorModel;
-import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.text.MessageFormat;
 import java.util.*;
 import java.util.List;
 import java.util.stream.Collectors;
 
-@Plugin(type = Command.class, headless = true,
+// the editor needs a display: headless alignments are run by BatchAlignment
+@Plugin(type = Command.class,
 		menuPath = "Plugins>Registration>DSH4 Image Alignment")
 public class ImageAlignment extends AbstractContextual implements Command, OnMainDialogEventListener, OnPreviewDialogEventListener, OnAlignDialogEventListener, OnRemoveDialogEventListener {
 	private ImagesManager manager;
+	private LandmarkPropagator propagator;
 	private BufferedImage image = null;
 	private MainDialog mainDialog;
 	private PreviewDialog previewDialog;
@@ -63,6 +64,7 @@ public class ImageAlignment extends AbstractContextual implements Command, OnMai
 
 	private List<String> tempImages = new ArrayList<>();
 	private boolean alignedImageSaved = false;
+	private String alignedImagePath;
 
 	static private String IMAGES_SCALED_MESSAGE = "Image size too large: image has been scaled for compatibility.";
 	static private String SINGLE_IMAGE_MESSAGE = "Only one image detected in the stack: align operation will be unavailable.";
@@ -70,10 +72,15 @@ public class ImageAlignment extends AbstractContextual implements Command, OnMai
 	static private String ALIGNED_IMAGE_NOT_SAVED_MESSAGE = "Aligned images not saved: are you sure you want to exit without saving?";
 	static private String DELETE_ALL_IMAGES = "Do you confirm to delete all the images of the stack?";
 	static private String IMAGE_SAVED_MESSAGE  = "Image successfully saved";
+	static private String IMAGE_NOT_SAVED_MESSAGE  = "Error: the image could not be saved in the selected path";
 	static private String ROI_NOT_ADDED_MESSAGE = "One or more corner points not added: they exceed the image bounds";
 	static private String INSUFFICIENT_MEMORY_MESSAGE = "Insufficient computer memory (RAM) available. \n\n\t Try to increase the allocated memory by going to \n\n\t                Edit  ▶ Options  ▶ Memory & Threads \n\n\t Change \"Maximum Memory\" to, at most, 1000 MB less than your computer's total RAM.";
 	static private String UNKNOWN_FORMAT_MESSAGE = "Error: trying to open a file with a unsupported format.";
-	static private String IMAGE_SIZE_TOO_BIG = "During computation the expected file size overcame imagej file limit. To continue, deselect \"keep all pixel data\" option.";
+	static private String AUTO_CORNERS_REPLACE_MESSAGE = "The corner points of all the images will be replaced by the ones found automatically. Proceed anyway?";
+	static private String AUTO_CORNERS_UNMATCHED_MESSAGE = "No matching corner points found for images {0}: add them by hand.";
+	static private String AUTO_CORNERS_FAILED_MESSAGE = "Corner points could not be found automatically: the images do not look alike enough.";
+	static private String REFINE_CORNERS_MESSAGE = "{0} of {1} corner points have been moved onto their match in the first image.";
+	static private String IMAGE_SIZE_TOO_BIG = "During computation the expected file size overcame imagej file limit. \"Keep all pixel data\" is not available: do you want to align the images on the first one, saving them tile by tile to a BigTIFF file?";
 	static private long TotalMemory = 0;
 	public static void main(final String... args) {
 		ImageJ ij = new ImageJ();
@@ -95,6 +102,8 @@ public class ImageAlignment extends AbstractContextual implements Command, OnMai
 			this.tempImages.forEach(imagePath -> {
 				try {
 					Files.deleteIfExists(Paths.get(imagePath));
+					// reusing a temporary image saves its landmarks beside it, and they would outlive it otherwise
+					Files.deleteIfExists(LandmarkStore.getFile(imagePath).toPath());
 				} catch (IOException e) { }
 			});
 		}));
@@ -134,6 +143,16 @@ public class ImageAlignment extends AbstractContextual implements Command, OnMai
 
 				// per evitare memory leaks, invochiamo manualmente il garbage collector ad ogni cambio di immagine
 				image = event.getChangeDirection() == ChangeImageEvent.ChangeDirection.NEXT ? this.manager.next() : this.manager.previous();
+				if(LandmarkPropagator.isEnabled()) {
+					try {
+						// the corner points of the previous image have been matched on this one while the user was working on it
+						if(propagator.apply(manager.getCurrentIndex()))
+							manager.saveLandmarks(manager.getCurrentIndex());
+					}
+					catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
 				mainDialog.changeImage(image);
 				mainDialog.setPrevImageButtonEnabled(manager.hasPrevious());
 				mainDialog.setNextImageButtonEnabled(manager.hasNext());
@@ -153,6 +172,7 @@ public class ImageAlignment extends AbstractContextual implements Command, OnMai
 			image.getManager().select(event.getRoiIndex());
 			image.getManager().runCommand("Delete");
 
+			manager.saveLandmarks(manager.getCurrentIndex());
 			refreshRoiGUI();
 		}
 
@@ -163,7 +183,7 @@ public class ImageAlignment extends AbstractContextual implements Command, OnMai
 			Prefs.noPointLabels = false;
 			int roiWidth = Toolkit.getDefaultToolkit().getScreenSize().width > image.getWidth() ? Toolkit.getDefaultToolkit().getScreenSize().width : image.getWidth() ;
 			roiWidth = (int)(roiWidth * 0.03);
-			OvalRoi outer = new OvalRoi (event.getClickCoords().x - (roiWidth / 2), event.getClickCoords().y - (roiWidth/2), roiWidth, roiWidth);
+			OvalRoi outer = new OvalRoi (event.getClickCoords().getX() - (roiWidth / 2), event.getClickCoords().getY() - (roiWidth/2), roiWidth, roiWidth);
 
 			// get roughly the 0,25% of the width of the image as stroke width of th rois added.
 			// If the resultant value is too small, set it as the minimum value
@@ -186,6 +206,7 @@ public class ImageAlignment extends AbstractContextual implements Command, OnMai
 			Arrays.stream(image.getManager().getRoisAsArray()).forEach(roi -> over.add(roi));
 			over.add(outer);
 			image.getManager().setOverlay(over);
+			manager.saveLandmarks(manager.getCurrentIndex());
 			refreshRoiGUI();
 			refreshRoiGUI();
 		}
@@ -219,8 +240,18 @@ public class ImageAlignment extends AbstractContextual implements Command, OnMai
 
 			// Timeout is necessary to ensure that the loadingDialog is shown
 			Utilities.setTimeout(() -> {
+				// each aligned image is written to its final file as soon as it is available
+				final String alignedPath = IJ.getDir("temp") + "DS4H-aligned-" + System.nanoTime() + ".ome.tif";
+				final AlignedImageWriter[] writer = {null};
 				try {
-					VirtualStack virtualStack;
+					final PixelFormat format = getPixelFormat(event);
+					if(event.isCoarseToFine()) {
+						// the matched corner points replace the ones placed by hand, so that they can be checked in the editor
+						new CoarseToFineRegistration(manager).register();
+						manager.saveLandmarks();
+						refreshRoiGUI();
+					}
+					CompressedImageStack stack;
 					ImagePlus transformedImagesStack;
 					if(event.isKeepOriginal()) {
 						// MAX IMAGE SIZE SEARCH AND SOURCE IMG SELECTION
@@ -238,7 +269,7 @@ public class ImageAlignment extends AbstractContextual implements Command, OnMai
 							if(dimension.height > maximumSize.height)
 								maximumSize.height = dimension.height;
 						}
-						BufferedImage sourceImg = manager.get(sourceImgIndex, true);
+						BufferedImage sourceImg = manager.get(sourceImgIndex, format);
 
 						// FINAL STACK SIZE CALCULATION AND OFFSETS
 						Dimension finalStackDimension = new Dimension(maximumSize.width, maximumSize.height);
@@ -272,25 +303,46 @@ public class ImageAlignment extends AbstractContextual implements Command, OnMai
 						finalStackDimension.height += sourceImg.getHeight() == maximumSize.height ? maxOffsetY : 0;
 
 						// The final stack of the image is exceeding the maximum size of the images for imagej (see http://imagej.1557.x6.nabble.com/Large-image-td5015380.html)
-						if (((double)finalStackDimension.width * finalStackDimension.height) > Integer.MAX_VALUE){
-							JOptionPane.showMessageDialog(null, IMAGE_SIZE_TOO_BIG, "Error: image size too big", JOptionPane.ERROR_MESSAGE);
+						if (((double)finalStackDimension.width * finalStackDimension.height) > Integer.MAX_VALUE ||
+								!CompressedImageStack.fits((long)finalStackDimension.width * finalStackDimension.height, format.getBytesPerPixel() / format.getSlicesPerImage())){
+							String[] buttons = { "Yes", "No"};
+							int answer = JOptionPane.showOptionDialog(null, IMAGE_SIZE_TOO_BIG, "Image size too big",
+									JOptionPane.WARNING_MESSAGE, 0, null, buttons, buttons[1]);
+							if(answer == 0)
+								alignTiled(event, format);
 							loadingDialog.hideDialog();
 							return;
 						}
 
-						ImageProcessor processor = sourceImg.getProcessor().createProcessor(finalStackDimension.width, finalStackDimension.height);
-						processor.insert(sourceImg.getProcessor(), maxOffsetX, maxOffsetY);
+						ImageProcessor[] processors = createChannels(sourceImg, finalStackDimension.width, finalStackDimension.height);
+						insertChannels(processors, sourceImg, maxOffsetX, maxOffsetY);
 
-						virtualStack = new VirtualStack(finalStackDimension.width, finalStackDimension.height, ColorModel.getRGBdefault(), IJ.getDir("temp"));
-						addToVirtualStack(new ImagePlus("", processor), virtualStack);
+						stack = new CompressedImageStack(finalStackDimension.width, finalStackDimension.height, getColorModel(format));
+						writer[0] = new AlignedImageWriter(alignedPath, finalStackDimension.width, finalStackDimension.height, manager.getNImages(), manager.getImageFile(sourceImgIndex).getMetadata(), getPyramidFactors(event, finalStackDimension, false, format), format);
+						addToStack(processors, stack, writer[0], format);
 
+						final int finalMaxOffsetX = maxOffsetX;
+						final int finalMaxOffsetXIndex = maxOffsetXIndex;
+						final int finalMaxOffsetY = maxOffsetY;
+						List<Integer> indexes = new ArrayList<>();
 						for(int i=0; i < manager.getNImages() ; i++) {
-							if(i == sourceImgIndex)
-								continue;
-							ImageProcessor newProcessor = new ColorProcessor(finalStackDimension.width, maximumSize.height);
-							ImagePlus transformedImage = LeastSquareImageTransformation.transform(manager.get(i, true), sourceImg, event.isRotate());
-
-							BufferedImage transformedOriginalImage = manager.get(i, true);
+							if(i != sourceImgIndex)
+								indexes.add(i);
+						}
+						// each slice keeps its original and transformed images until it is pasted, side by side, on a canvas of its own as big as the first slice
+						long sliceBytes = AlignmentEngine.estimateSliceBytes((long)maximumSize.width * maximumSize.height, (long)sourceImg.getWidth() * sourceImg.getHeight(), format.getBytesPerPixel())
+								+ (long)finalStackDimension.width * finalStackDimension.height * format.getBytesPerPixel();
+						final WarpedSliceCache cache = WarpedSliceCache.getDefault();
+						final int finalSourceImgIndex = sourceImgIndex;
+						new AlignmentEngine(sliceBytes).run(indexes, i -> {
+							BufferedImage original = manager.get(i, format);
+							return new AlignedSlice(original, transform(cache, i, original, finalSourceImgIndex, sourceImg, event, format));
+						}, (i, slice) -> {
+							ImagePlus transformedImage = slice.transformed;
+							// a single RGB canvas, or a canvas of the same type of the image for each one of its channels, as big as the first slice
+							ImageProcessor[] newProcessors = format.isRGB() ? new ImageProcessor[]{new ColorProcessor(finalStackDimension.width, finalStackDimension.height)} : createChannels(transformedImage, finalStackDimension.width, finalStackDimension.height);
+
+							BufferedImage transformedOriginalImage = slice.original;
 							final int[] edgeX = {-1};
 							final int[] edgeY = {-1};
 							Arrays.stream(transformedOriginalImage.getManager().getRoisAsArray()).forEach(roi -> {
@@ -312,36 +364,42 @@ public class ImageAlignment extends AbstractContextual implements Command, OnMai
 							int offsetXOriginal = 0;
 							if(offsetsX.get(i) < 0)
 								offsetXOriginal = Math.abs(offsetsX.get(i));
-							offsetXOriginal += maxOffsetXIndex != i ? maxOffsetX : 0;
+							offsetXOriginal += finalMaxOffsetXIndex != i ? finalMaxOffsetX : 0;
 
 							int offsetXTransformed = 0;
-							if(offsetsX.get(i) > 0 && maxOffsetXIndex != i)
+							if(offsetsX.get(i) > 0 && finalMaxOffsetXIndex != i)
 								offsetXTransformed = Math.abs(offsetsX.get(i));
-							offsetXTransformed += maxOffsetX;
+							offsetXTransformed += finalMaxOffsetX;
 
 							int difference = (int)(managers.get(maxOffsetYIndex).getRoisAsArray()[0].getYBase() - managers.get(i).getRoisAsArray()[0].getYBase());
-							newProcessor.insert(transformedOriginalImage.getProcessor(), offsetXOriginal, difference);
-							newProcessor.insert(transformedImage.getProcessor(), offsetXTransformed, (maxOffsetY));
-							addToVirtualStack(new ImagePlus("", newProcessor), virtualStack);
-						}
+							insertChannels(newProcessors, transformedOriginalImage, offsetXOriginal, difference);
+							insertChannels(newProcessors, transformedImage, offsetXTransformed, (finalMaxOffsetY));
+							addToStack(newProcessors, stack, writer[0], format);
+						});
 					}
 					else {
-						BufferedImage sourceImg = manager.get(0, true);
-						virtualStack = new VirtualStack(sourceImg.getWidth(), sourceImg.getHeight(), ColorModel.getRGBdefault(), IJ.getDir("temp"));
-						addToVirtualStack(sourceImg, virtualStack);
-						for(int i=1; i < manager.getNImages(); i++) {
-							System.gc();
-							ImagePlus img = LeastSquareImageTransformation.transform(manager.get(i, true), sourceImg, event.isRotate());
-							addToVirtualStack(img, virtualStack);
+						StackAlignment alignment = new StackAlignment(manager, event.isRotate(), event.getModel(), format, event.isPyramidal());
+						// The images would exceed the maximum image size supported by imagej: they can only be aligned tile by tile
+						if(alignment.isOversize()) {
+							alignTiled(event, format);
+							loadingDialog.hideDialog();
+							return;
 						}
+						stack = alignment.align(alignedPath);
+					}
+					if(writer[0] != null) {
+						writer[0].close();
+						writer[0] = null;
+					}
+					transformedImagesStack = new ImagePlus("", stack);
+					if(format.getSlicesPerImage() > 1) {
+						transformedImagesStack.setDimensions(format.getSlicesPerImage(), 1, manager.getNImages());
+						transformedImagesStack = new CompositeImage(transformedImagesStack, CompositeImage.COMPOSITE);
 					}
-					transformedImagesStack = new ImagePlus("", virtualStack);
-					String filePath = IJ.getDir("temp") + transformedImagesStack.hashCode() + ".tiff";
-
-					new ImageConverter(transformedImagesStack).convertToRGB();
-					new FileSaver(transformedImagesStack).saveAsTiff(filePath);
 					System.gc();
-					tempImages.add(filePath);
+					tempImages.add(alignedPath);
+					this.alignedImagePath = alignedPath;
+					this.alignedImageSaved = false;
 					this.loadingDialog.hideDialog();
 					alignDialog = new AlignDialog(transformedImagesStack, this);
 					alignDialog.pack();
@@ -350,13 +408,25 @@ public class ImageAlignment extends AbstractContextual implements Command, OnMai
 				catch (Exception e) {
 					e.printStackTrace();
 				}
+				finally {
+					try {
+						if(writer[0] != null)
+							writer[0].close();
+						// a failed alignment leaves a partial file behind, that nothing would ever delete
+						if(!tempImages.contains(alignedPath))
+							Files.deleteIfExists(Paths.get(alignedPath));
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
 				this.loadingDialog.hideDialog();
 			}, 10);
 		}
 
 		if(dialogEvent instanceof OpenFileEvent || dialogEvent instanceof ExitEvent) {
 			boolean roisPresent = manager.getRoiManagers().stream().filter(manager -> manager.getRoisAsArray().length != 0).count() > 0;
-			if(roisPresent){
+			// the landmarks are kept beside the files: they are only lost if they could not be written there
+			if(roisPresent && (dialogEvent instanceof OpenFileEvent || !manager.saveUnsavedLandmarks())){
 				String[] buttons = { "Yes", "No"};
 				String message = dialogEvent instanceof OpenFileEvent ? "This will replace the existing image. Proceed anyway?" : "You will lose the existing added landmarks. Proceed anyway?";
 				int answer = JOptionPane.showOptionDialog(null, message, "Careful now",
@@ -379,11 +449,23 @@ public class ImageAlignment extends AbstractContextual implements Command, OnMai
 			}
 		}
 
+		if(dialogEvent instanceof PropagateCornersEvent) {
+			LandmarkPropagator.setEnabled(((PropagateCornersEvent)dialogEvent).getValue());
+			if(LandmarkPropagator.isEnabled())
+				propagator.prepare(manager.getCurrentIndex());
+			else
+				propagator.cancel();
+		}
+
 		if(dialogEvent instanceof OpenAboutEvent) {
 			this.aboutDialog.setVisible(true);
 		}
 
 		if(dialogEvent instanceof MovedRoiEvent) {
+			// a copied corner point moved by hand has been placed by the user
+			if(image.getRoi() != null && ImagesManager.COPIED_LANDMARK_NAME.equals(image.getRoi().getName()))
+				image.getRoi().setName("•");
+			manager.saveLandmarks(manager.getCurrentIndex());
 			this.mainDialog.refreshROIList(image.getManager());
 			if(previewDialog != null)
 				this.previewDialog.drawRois();
@@ -413,6 +495,55 @@ public class ImageAlignment extends AbstractContextual implements Command, OnMai
 			refreshRoiGUI();
 		}
 
+		if(dialogEvent instanceof AutoCornersEvent) {
+			boolean roisPresent = manager.getRoiManagers().stream().anyMatch(roiManager -> roiManager.getCount() != 0);
+			if(roisPresent) {
+				String[] buttons = { "Yes", "No"};
+				int answer = JOptionPane.showOptionDialog(null, AUTO_CORNERS_REPLACE_MESSAGE, "Careful now",
+						JOptionPane.WARNING_MESSAGE, 0, null, buttons, buttons[1]);
+				if(answer == 1)
+					return null;
+			}
+			this.loadingDialog.showDialog();
+			Utilities.setTimeout(() -> {
+				try {
+					List<Integer> unmatched = new AutoLandmarks(manager).detect();
+					manager.saveLandmarks();
+					refreshRoiGUI();
+					this.loadingDialog.hideDialog();
+					if(!unmatched.isEmpty())
+						JOptionPane.showMessageDialog(null, MessageFormat.format(AUTO_CORNERS_UNMATCHED_MESSAGE,
+								unmatched.stream().map(index -> String.valueOf(index + 1)).collect(Collectors.joining(", "))), "Warning", JOptionPane.WARNING_MESSAGE);
+				}
+				catch (IllegalArgumentException e) {
+					this.loadingDialog.hideDialog();
+					JOptionPane.showMessageDialog(null, AUTO_CORNERS_FAILED_MESSAGE, "Warning", JOptionPane.WARNING_MESSAGE);
+				}
+				catch (Exception e) {
+					e.printStackTrace();
+				}
+				this.loadingDialog.hideDialog();
+			}, 10);
+		}
+
+		if(dialogEvent instanceof RefineCornersEvent) {
+			this.loadingDialog.showDialog();
+			Utilities.setTimeout(() -> {
+				try {
+					int refined = new LandmarkRefiner(manager).refine();
+					manager.saveLandmarks();
+					int total = manager.getRoiManagers().get(0).getCount() * (manager.getNImages() - 1);
+					refreshRoiGUI();
+					this.loadingDialog.hideDialog();
+					JOptionPane.showMessageDialog(null, MessageFormat.format(REFINE_CORNERS_MESSAGE, refined, total), "Refine corners", JOptionPane.INFORMATION_MESSAGE);
+				}
+				catch (Exception e) {
+					e.printStackTrace();
+				}
+				this.loadingDialog.hideDialog();
+			}, 10);
+		}
+
 		if(dialogEvent instanceof CopyCornersEvent) {
 			// get the indexes of all roi managers with at least a roi added
 			List<Integer> imageIndexes =  manager.getRoiManagers().stream()
@@ -459,11 +590,93 @@ public class ImageAlignment extends AbstractContextual implements Command, OnMai
 		return null;
 	}
 
-	private void addToVirtualStack(ImagePlus img, VirtualStack virtualStack) {
-		String path = IJ.getDir("temp") + img.getProcessor().hashCode()  + ".tiff";
-		new FileSaver(img).saveAsTiff(path);
-		virtualStack.addSlice(new File(path).getName());
-		this.tempImages.add(path);
+	/**
+	 * Aligns the images at full resolution tile by tile, streaming the result directly to a BigTIFF file chosen by the user.
+	 * Used when the aligned images would not fit in an ImageJ image.
+	 */
+	private void alignTiled(AlignEvent event, PixelFormat format) throws Exception {
+		this.loadingDialog.hideDialog();
+		SaveDialog saveDialog = new SaveDialog("Save as", "aligned", ".ome.tif");
+		if (saveDialog.getFileName() == null)
+			return;
+		String path = saveDialog.getDirectory() + saveDialog.getFileName();
+		this.loadingDialog.showDialog();
+		TiledImageTransformation transformation = new TiledImageTransformation(manager, 0, event.isRotate(), event.getModel(), format);
+		Dimension dimension = transformation.getTargetDimension();
+		try (AlignedImageWriter writer = new AlignedImageWriter(path, dimension.width, dimension.height, manager.getNImages(), manager.getImageFile(0).getMetadata(), getPyramidFactors(event, dimension, true, format), format)) {
+			transformation.transform(writer);
+		}
+		catch (Exception e) {
+			Files.deleteIfExists(Paths.get(path));
+			throw e;
+		}
+		this.loadingDialog.hideDialog();
+		JOptionPane.showMessageDialog(null, IMAGE_SAVED_MESSAGE, "Save complete", JOptionPane.INFORMATION_MESSAGE);
+		this.alignedImagePath = path;
+		this.alignedImageSaved = true;
+	}
+
+	/**
+	 * Returns the resolution levels to write along with the aligned images, none if a flat file was requested
+	 */
+	private static int[] getPyramidFactors(AlignEvent event, Dimension dimension, boolean tiled, PixelFormat format) {
+		if (!event.isPyramidal())
+			return new int[0];
+		return tiled ? AlignedImageWriter.getStreamingPyramidFactors(dimension.width, dimension.height, format) : AlignedImageWriter.getPyramidFactors(dimension.width, dimension.height);
+	}
+
+	/**
+	 * Returns the format of the aligned images: the one of the source files, when the user asked to keep it and all the files share it, RGB otherwise
+	 */
+	private PixelFormat getPixelFormat(AlignEvent event) {
+		if (!event.isKeepPixelType())
+			return PixelFormat.RGB;
+		return manager.getPixelFormat();
+	}
+
+	private static ColorModel getColorModel(PixelFormat format) {
+		return format.isRGB() ? ColorModel.getRGBdefault() : null;
+	}
+
+	/**
+	 * Returns a new empty canvas of the given size for each channel of the given image, of the same type of the channel
+	 */
+	private static ImageProcessor[] createChannels(ImagePlus image, int width, int height) {
+		ImageProcessor[] channels = StackAlignment.getChannels(image);
+		for (int i = 0; i < channels.length; i++)
+			channels[i] = channels[i].createProcessor(width, height);
+		return channels;
+	}
+
+	/**
+	 * Draws each channel of the given image onto its canvas, at the given location
+	 */
+	private static void insertChannels(ImageProcessor[] canvases, ImagePlus image, int x, int y) {
+		ImageProcessor[] channels = StackAlignment.getChannels(image);
+		for (int i = 0; i < canvases.length; i++)
+			canvases[i].insert(channels[i], x, y);
+	}
+
+	/**
+	 * An image of the stack together with its transformed version, as produced by the alignment engine
+	 */
+	private static class AlignedSlice {
+		private final BufferedImage original;
+		private final ImagePlus transformed;
+
+		private AlignedSlice(BufferedImage original, ImagePlus transformed) {
+			this.original = original;
+			this.transformed = transformed;
+		}
+	}
+
+	/**
+	 * Adds an aligned image both to the stack that is shown to the user and to the output file
+	 */
+	private static void addToStack(ImageProcessor[] channels, CompressedImageStack stack, AlignedImageWriter writer, PixelFormat format) throws IOException, FormatException {
+		writer.writePlane(channels);
+		for (ImageProcessor channel : channels)
+			stack.addSlice("", format.isRGB() ? channel.convertToRGB() : channel);
 	}
 
 	@Override
@@ -489,14 +702,28 @@ public class ImageAlignment extends AbstractContextual implements Command, OnMai
 	public void onAlignDialogEventListener(IAlignDialogEvent dialogEvent) {
 
 		if(dialogEvent instanceof SaveEvent) {
-			SaveDialog saveDialog = new SaveDialog("Save as", "aligned", ".tiff");
+			SaveDialog saveDialog = new SaveDialog("Save as", "aligned", ".ome.tif");
 			if (saveDialog.getFileName()==null) {
 				loadingDialog.hideDialog();
 				return;
 			}
 			String path = saveDialog.getDirectory()+saveDialog.getFileName();
 			loadingDialog.showDialog();
-			new FileSaver(alignDialog.getImagePlus()).saveAsTiff(path);
+			// The aligned images have already been written during the alignment: saving them just means moving that file
+			try {
+				if(alignedImageSaved)
+					Files.copy(Paths.get(alignedImagePath), Paths.get(path), StandardCopyOption.REPLACE_EXISTING);
+				else {
+					Files.move(Paths.get(alignedImagePath), Paths.get(path), StandardCopyOption.REPLACE_EXISTING);
+					tempImages.remove(alignedImagePath);
+					alignedImagePath = path;
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				loadingDialog.hideDialog();
+				JOptionPane.showMessageDialog(null, IMAGE_NOT_SAVED_MESSAGE, "Error", JOptionPane.ERROR_MESSAGE);
+				return;
+			}
 			loadingDialog.hideDialog();
 			JOptionPane.showMessageDialog(null, IMAGE_SAVED_MESSAGE, "Save complete", JOptionPane.INFORMATION_MESSAGE);
 			this.alignedImageSaved = true;
@@ -504,7 +731,7 @@ public class ImageAlignment extends AbstractContextual implements Command, OnMai
 
 		if(dialogEvent instanceof ReuseImageEvent) {
 			this.disposeAll();
-			this.initialize(tempImages.get(tempImages.size()-1));
+			this.initialize(alignedImagePath);
 		}
 
 		if(dialogEvent instanceof DS4H.AlignDialog.event.ExitEvent) {
@@ -517,6 +744,8 @@ public class ImageAlignment extends AbstractContextual implements Command, OnMai
 			}
 			alignDialog.setVisible(false);
 			alignDialog.dispose();
+			if(alignDialog.getImagePlus().getStack() instanceof CompressedImageStack)
+				((CompressedImageStack)alignDialog.getImagePlus().getStack()).dispose();
 		}
 	}
 
@@ -552,6 +781,7 @@ public class ImageAlignment extends AbstractContextual implements Command, OnMai
 
 				// remove the image selected
 				this.removeImageDialog.removeImageFile(imageFileIndex);
+				this.propagator.cancel();
 				this.manager.removeImageFile(imageFileIndex);
 				image = manager.get(manager.getCurrentIndex());
 				mainDialog.changeImage(image);
@@ -564,11 +794,31 @@ public class ImageAlignment extends AbstractContextual implements Command, OnMai
 		}
 	}
 
+	/**
+	 * Transforms the image at the given index onto the source one, unless the cache already holds the result.
+	 * The original image is needed anyway, since its pixels are kept around the transformed ones.
+	 */
+	private ImagePlus transform(WarpedSliceCache cache, int index, BufferedImage original, int sourceImgIndex, BufferedImage sourceImg, AlignEvent event, PixelFormat format) {
+		if(cache == null)
+			return LeastSquareImageTransformation.transform(original, sourceImg, event.isRotate(), event.getModel());
+		String key = WarpedSliceCache.getKey(manager, index, sourceImgIndex, event.isRotate(), event.getModel(), true, format);
+		ImageProcessor[] channels = cache.getChannels(key, sourceImg.getWidth(), sourceImg.getHeight());
+		if(channels != null) {
+			ImageStack stack = new ImageStack(sourceImg.getWidth(), sourceImg.getHeight());
+			for(ImageProcessor channel : channels)
+				stack.addSlice("", channel);
+			return new ImagePlus("Transformed" + original.getTitle(), stack);
+		}
+		ImagePlus transformed = LeastSquareImageTransformation.transform(original, sourceImg, event.isRotate(), event.getModel());
+		if(transformed != null)
+			cache.putChannels(key, StackAlignment.getChannels(transformed));
+		return transformed;
+	}
+
 	/**
 	 * Refresh all the Roi-based guis in the MainDialog
 	 */
 	private void refreshRoiGUI() {
-
 		mainDialog.drawRois(image.getManager());
 		if(previewDialog != null && previewDialog.isVisible())
 			previewDialog.drawRois();
@@ -584,6 +834,10 @@ public class ImageAlignment extends AbstractContextual implements Command, OnMai
 				.map(roiManager -> manager.getRoiManagers().indexOf(roiManager))
 				.filter(index -> index != manager.getCurrentIndex()).count() != 0;
 		mainDialog.setCopyCornersEnabled(copyCornersEnabled);
+		mainDialog.setAutoCornersEnabled(manager.getNImages() > 1);
+		mainDialog.setRefineCornersEnabled(alignButtonEnabled);
+		if(LandmarkPropagator.isEnabled())
+			propagator.prepare(manager.getCurrentIndex());
 	}
 	/**
 	 * Initialize the plugin opening the file specified in the mandatory param
@@ -618,6 +872,7 @@ public class ImageAlignment extends AbstractContextual implements Command, OnMai
 				JOptionPane.showMessageDialog(null, UNKNOWN_FORMAT_MESSAGE, "Error: unknown format", JOptionPane.ERROR_MESSAGE);
 			}
 			manager = new ImagesManager(pathFile);
+			propagator = new LandmarkPropagator(manager);
 			image = manager.next();
 			mainDialog = new MainDialog(image, this);
 			mainDialog.setPrevImageButtonEnabled(manager.hasPrevious());
@@ -626,6 +881,9 @@ public class ImageAlignment extends AbstractContextual implements Command, OnMai
 
 			mainDialog.pack();
 			mainDialog.setVisible(true);
+			// the corner points loaded with the file are matched on the next image right away
+			if(LandmarkPropagator.isEnabled())
+				propagator.prepare(manager.getCurrentIndex());
 
 			this.loadingDialog.hideDialog();
 			if(image.isReduced())
@@ -675,6 +933,7 @@ public class ImageAlignment extends AbstractContextual implements Command, OnMai
 			this.alignDialog.dispose();
 		if(this.removeImageDialog != null)
 			this.removeImageDialog.dispose();
+		this.propagator.dispose();
 		this.manager.dispose();
 		System.gc();
 		TotalMemory = 0;
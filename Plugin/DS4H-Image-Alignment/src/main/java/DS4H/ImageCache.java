@@ -0,0 +1,137 @@
+package DS4H;
+
+import ij.Prefs;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Keeps the most recently used decoded images of the stack, so that going back and forth between images does not decode
+ * them again every time. Images are evicted, least recently used first, when their total size exceeds the memory budget.
+ * The cached images are never shown directly: ImageJ copies their pixels every time an editor image is built from them.
+ */
+public class ImageCache {
+    // Memory budget of the cache in MB. When not set, a fifth of the maximum heap is used
+    public static final String BUDGET_PREFERENCE = "DS4H.imageCacheBudget";
+    private static final double DEFAULT_BUDGET_FRACTION = 0.2;
+
+    private final Map<Key, BufferedImage> images = new LinkedHashMap<>(16, 0.75f, true);
+    private final long budget;
+    private long memoryUsage = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    private static class Key {
+        private final ImageFile imageFile;
+        private final int index;
+
+        private Key(ImageFile imageFile, int index) {
+            this.imageFile = imageFile;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key key = (Key)o;
+            return index == key.index && imageFile == key.imageFile;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(imageFile), index);
+        }
+    }
+
+    public ImageCache() {
+        this(getDefaultBudget());
+    }
+
+    public ImageCache(long budget) {
+        this.budget = budget;
+    }
+
+    private static long getDefaultBudget() {
+        long budget = (long)Prefs.get(BUDGET_PREFERENCE, 0) * 1024 * 1024;
+        return budget > 0 ? budget : (long)(Runtime.getRuntime().maxMemory() * DEFAULT_BUDGET_FRACTION);
+    }
+
+    /**
+     * Returns the cached image at the given index of the given file, or null if it has not been decoded yet (or has been evicted)
+     */
+    public synchronized BufferedImage get(ImageFile imageFile, int index) {
+        BufferedImage image = images.get(new Key(imageFile, index));
+        if (image == null)
+            misses++;
+        else
+            hits++;
+        return image;
+    }
+
+    /**
+     * Like get, but without refreshing the image nor counting the access
+     */
+    public synchronized boolean contains(ImageFile imageFile, int index) {
+        return images.containsKey(new Key(imageFile, index));
+    }
+
+    public synchronized void put(ImageFile imageFile, int index, BufferedImage image) {
+        long size = getSize(image);
+        // an image bigger than the whole budget would just empty the cache
+        if (size > budget)
+            return;
+        BufferedImage previous = images.put(new Key(imageFile, index), image);
+        if (previous != null)
+            memoryUsage -= getSize(previous);
+        memoryUsage += size;
+
+        Iterator<BufferedImage> eldest = images.values().iterator();
+        while (memoryUsage > budget && eldest.hasNext()) {
+            memoryUsage -= getSize(eldest.next());
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Removes all the images of the given file
+     */
+    public synchronized void invalidate(ImageFile imageFile) {
+        Iterator<Map.Entry<Key, BufferedImage>> entries = images.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Key, BufferedImage> entry = entries.next();
+            if (entry.getKey().imageFile == imageFile) {
+                memoryUsage -= getSize(entry.getValue());
+                entries.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        images.clear();
+        memoryUsage = 0;
+    }
+
+    public synchronized long getMemoryUsage() {
+        return memoryUsage;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private static long getSize(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long)buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+}
@@ -1,45 +1,68 @@
 package DS4H;
 
 import DS4H.BufferedImage.BufferedImage;
+import ij.ImageStack;
 import ij.plugin.frame.RoiManager;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
 import loci.formats.FormatException;
 import loci.formats.IFormatReader;
 import loci.formats.ImageReader;
 import loci.formats.gui.BufferedImageReader;
+import loci.formats.meta.MetadataRetrieve;
 import loci.plugins.in.DisplayHandler;
 import loci.plugins.in.ImportProcess;
 import loci.plugins.in.ImporterOptions;
+import loci.plugins.util.ImageProcessorReader;
 import java.awt.*;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class ImageFile {
     private String pathFile;
     private boolean reducedImageMode;
-    private List<RoiManager> roiManagers;
+    private List<Landmarks> landmarks;
 
     private Dimension editorImageDimension;
-    private BufferedImageReader bufferedEditorImageReader;
-    private BufferedImageReader bufferedEditorImageReaderWholeSlide;
+    // every thread reading the same file at the same time needs its own reader
+    private static final int MAX_READERS = Runtime.getRuntime().availableProcessors();
+    // biggest editor image that is decoded in a fraction of a second, when the file has smaller levels than the ones ImageJ can handle
+    private static final long EDITOR_LEVEL_MAX_PIXELS = 4096L * 4096;
+    private ReaderPool editorReaders;
+    private ReaderPool wholeSlideReaders;
+    private int editorLevel;
+    private int nImages;
     private ImportProcess importProcess;
-    private boolean wholeSlideInitialized = false;
+    // dimensions of the resolution levels of the full resolution image, biggest first
+    private List<Dimension> levelDimensions;
+    private final Map<Integer, ReaderPool> levelReaders = new HashMap<>();
     public ImageFile(String pathFile) throws IOException, FormatException {
         this.pathFile = pathFile;
-        this.roiManagers = new ArrayList<>();
+        this.landmarks = new ArrayList<>();
         generateImageReader();
     }
 
     private void generateImageReader() throws FormatException, IOException {
         this.importProcess = getImageImportingProcess(pathFile);
         final IFormatReader imageReader = new ImageReader(ImageReader.getDefaultReaderClasses());
+        // the resolution levels of the first series are read as such, instead of as series of their own
+        imageReader.setFlattenedResolutions(false);
         imageReader.setId(pathFile);
+        this.levelDimensions = new ArrayList<>();
+        for (int i = 0; i < imageReader.getResolutionCount(); i++) {
+            imageReader.setResolution(i);
+            levelDimensions.add(new Dimension(imageReader.getSizeX(), imageReader.getSizeY()));
+        }
+        imageReader.setResolution(0);
         boolean over2GBLimit = (long)imageReader.getSizeX() * (long)imageReader.getSizeY() * imageReader.getRGBChannelCount() > Integer.MAX_VALUE / 3;
         if(over2GBLimit) {
 
-            // Cycles all the available series in search of an image with sustainable size
-            for (int i = 0; i < imageReader.getSeriesCount() && !this.reducedImageMode; i++) {
-                imageReader.setSeries(i);
+            // Cycles all the available resolution levels in search of an image with sustainable size
+            for (int i = 0; i < imageReader.getResolutionCount() && !this.reducedImageMode; i++) {
+                imageReader.setResolution(i);
                 over2GBLimit = (long)imageReader.getSizeX() * (long)imageReader.getSizeY() * imageReader.getRGBChannelCount() > Integer.MAX_VALUE / 3;
 
                 if(!over2GBLimit)
@@ -47,52 +70,191 @@ public class ImageFile {
             }
         }
 
+        if(this.reducedImageMode)
+            selectEditorLevel(imageReader);
+
         this.editorImageDimension = new Dimension(imageReader.getSizeX(),imageReader.getSizeY());
-        this.bufferedEditorImageReader = BufferedImageReader.makeBufferedImageReader(imageReader);
-        for(int i=0; i < bufferedEditorImageReader.getImageCount(); i++)
-            this.roiManagers.add(new RoiManager(false));
+        this.editorLevel = imageReader.getResolution();
+        this.nImages = imageReader.getImageCount();
+        this.editorReaders = new ReaderPool(pathFile, editorLevel, MAX_READERS, BufferedImageReader.makeBufferedImageReader(imageReader));
+        for(int i=0; i < nImages; i++)
+            this.landmarks.add(new Landmarks());
+    }
+
+    /**
+     * The image is already too big to be edited at full resolution: instead of the biggest level that ImageJ can handle,
+     * which takes seconds to decode, edit the biggest one that decodes quickly. The details are drawn from the finer
+     * levels, only where and when the user zooms in.
+     */
+    private static void selectEditorLevel(IFormatReader imageReader) {
+        int selected = imageReader.getResolution();
+        long selectedPixels = 0;
+        for (int i = selected; i < imageReader.getResolutionCount(); i++) {
+            imageReader.setResolution(i);
+            long pixels = (long)imageReader.getSizeX() * imageReader.getSizeY();
+            if (pixels <= EDITOR_LEVEL_MAX_PIXELS && pixels > selectedPixels) {
+                selected = i;
+                selectedPixels = pixels;
+            }
+        }
+        imageReader.setResolution(selected);
     }
 
     public int getNImages() {
-        return this.bufferedEditorImageReader.getImageCount();
+        return this.nImages;
     }
 
+    /**
+     * Reads the image at the given index. It can be called from several threads at once, each one using its own reader
+     */
     public BufferedImage getImage(int index, boolean wholeSlide) throws IOException, FormatException {
         if(!wholeSlide)
-            return new BufferedImage("", bufferedEditorImageReader.openImage(index), roiManagers.get(index), reducedImageMode);
-        else{
-            if(!wholeSlideInitialized) {
-                try {
-                    getWholeSlideImage();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
-            return new BufferedImage("", bufferedEditorImageReaderWholeSlide.openImage(index), roiManagers.get(index),  this.editorImageDimension);
-        }
+            return getEditorImage(index, openEditorImage(index));
+        else
+            return new BufferedImage("", getWholeSlideReaders().read(reader -> reader.openImage(index)), landmarks.get(index),  this.editorImageDimension);
     }
 
-    public void dispose() throws IOException {
-        bufferedEditorImageReader.close();
-        roiManagers.forEach(Window::dispose);
+    /**
+     * Decodes the image at the given index, at the size used by the editor
+     */
+    public java.awt.image.BufferedImage openEditorImage(int index) throws IOException, FormatException {
+        return editorReaders.read(reader -> reader.openImage(index));
+    }
+
+    /**
+     * Builds the editor image at the given index from its already decoded pixels
+     */
+    public BufferedImage getEditorImage(int index, java.awt.image.BufferedImage image) {
+        return new BufferedImage("", image, landmarks.get(index), reducedImageMode);
+    }
+
+    /**
+     * Reads only the given region of the full resolution image at the given index
+     */
+    public ColorProcessor openRegion(int index, Rectangle region) throws IOException, FormatException {
+        return new ColorProcessor(getWholeSlideReaders().read(reader -> reader.openImage(index, region.x, region.y, region.width, region.height)));
+    }
+
+    /**
+     * Reads the image at the given index at full resolution, keeping the type of its pixels: each channel is a slice of its stack
+     */
+    public BufferedImage getNativeImage(int index) throws IOException, FormatException {
+        Dimension dimension = getWholeSlideDimension();
+        ImageStack stack = new ImageStack(dimension.width, dimension.height);
+        for (ImageProcessor channel : openProcessors(index, new Rectangle(dimension)))
+            stack.addSlice("", channel);
+        return new BufferedImage("", stack, landmarks.get(index), this.editorImageDimension);
+    }
+
+    /**
+     * Reads only the given region of the full resolution image at the given index, keeping the type of its pixels: one processor for each channel
+     */
+    public ImageProcessor[] openProcessors(int index, Rectangle region) throws IOException, FormatException {
+        // the wrapper only converts the pixels read by the pooled reader, so it must not be closed
+        return getWholeSlideReaders().read(reader -> new ImageProcessorReader(reader).openProcessors(index, region.x, region.y, region.width, region.height));
+    }
+
+    /**
+     * Returns the format of the pixels of the full resolution images, or null if ImageJ can only show them converted to RGB
+     */
+    public synchronized PixelFormat getPixelFormat() {
+        IFormatReader reader = importProcess.getReader();
+        reader.setSeries(0);
+        // the values of indexed images only make sense together with their lookup tables
+        if (reader.isIndexed())
+            return null;
+        return PixelFormat.fromPixelType(reader.getPixelType(), reader.getRGBChannelCount());
     }
 
-    private void getWholeSlideImage() throws IOException, FormatException {
-        this.wholeSlideInitialized = true;
-        // If the bufferedImageReader is already using the first series (thus the images with the biggest sizes) there is no need to initialize a new bufferedImageReader. We can just reuse it as it is
-        if (bufferedEditorImageReader.getSeries() == 0) {
-            this.bufferedEditorImageReaderWholeSlide = bufferedEditorImageReader;
-            return;
+    /**
+     * Reads the given region of the image at the given index, from the given resolution level (as returned by getResolutionLevels)
+     */
+    public java.awt.image.BufferedImage openLevelRegion(int index, int level, Rectangle region) throws IOException, FormatException {
+        return getLevelReaders(level).read(reader -> reader.openImage(index, region.x, region.y, region.width, region.height));
+    }
+
+    private synchronized ReaderPool getLevelReaders(int level) throws IOException, FormatException {
+        if (level == editorLevel)
+            return editorReaders;
+        if (level == 0)
+            return getWholeSlideReaders();
+        return levelReaders.computeIfAbsent(level, key -> new ReaderPool(pathFile, key, MAX_READERS));
+    }
+
+    /**
+     * Returns the dimensions of the resolution levels of the full resolution image, biggest first, as declared by the
+     * file: there is only the full resolution image if the file has no pyramid
+     */
+    public List<Dimension> getResolutionLevels() {
+        return levelDimensions;
+    }
+
+    /**
+     * Returns the dimension of the full resolution image (the first series)
+     */
+    public synchronized Dimension getWholeSlideDimension() {
+        importProcess.getReader().setSeries(0);
+        return new Dimension(importProcess.getReader().getSizeX(), importProcess.getReader().getSizeY());
+    }
+
+    /**
+     * Returns the OME metadata of the file
+     */
+    public MetadataRetrieve getMetadata() {
+        return importProcess.getOMEMetadata();
+    }
+
+    public Dimension getEditorImageDimension() {
+        return editorImageDimension;
+    }
+
+    /**
+     * Returns the resolution level of the file shown by the editor, whose coordinates the landmarks are in
+     */
+    public int getEditorLevel() {
+        return editorLevel;
+    }
+
+    public synchronized void dispose() throws IOException {
+        editorReaders.close();
+        if (wholeSlideReaders != null && wholeSlideReaders != editorReaders)
+            wholeSlideReaders.close();
+        levelReaders.values().forEach(ReaderPool::close);
+        landmarks.forEach(Landmarks::dispose);
+    }
+
+    private synchronized ReaderPool getWholeSlideReaders() throws IOException, FormatException {
+        if (wholeSlideReaders != null)
+            return wholeSlideReaders;
+        // If the editor readers are already using the full resolution level (thus the images with the biggest sizes) there is no need to open new readers. We can just reuse them as they are
+        if (editorLevel == 0) {
+            this.wholeSlideReaders = editorReaders;
+            return wholeSlideReaders;
         }
-        DisplayHandler displayHandler = new DisplayHandler(importProcess);
-        displayHandler.displayOriginalMetadata();
-        displayHandler.displayOMEXML();
-        this.bufferedEditorImageReaderWholeSlide = BufferedImageReader.makeBufferedImageReader(importProcess.getReader());
-        this.bufferedEditorImageReaderWholeSlide.setSeries(0);
+        // the metadata windows can't be opened without a display
+        if (!GraphicsEnvironment.isHeadless()) {
+            DisplayHandler displayHandler = new DisplayHandler(importProcess);
+            displayHandler.displayOriginalMetadata();
+            displayHandler.displayOMEXML();
+        }
+        this.wholeSlideReaders = new ReaderPool(pathFile, 0, MAX_READERS);
+        return wholeSlideReaders;
+    }
+
+    /**
+     * Returns the landmarks of each image of the file
+     */
+    public List<Landmarks> getLandmarks() {
+        return this.landmarks;
     }
 
+    /**
+     * Returns the RoiManagers the editor keeps the landmarks of each image in. They don't exist in headless runs
+     */
     public List<RoiManager> getRoiManagers() {
-        return this.roiManagers;
+        List<RoiManager> roiManagers = new ArrayList<>();
+        landmarks.forEach(imageLandmarks -> roiManagers.add(imageLandmarks.getRoiManager()));
+        return roiManagers;
     }
 
     public static long estimateMemoryUsage(String pathFile) throws IOException, FormatException {
@@ -116,7 +278,7 @@ public class ImageFile {
      * Returns the maximum image size obtainable by the current ImageFile
      * @return
      */
-    public Dimension getMaximumSize() {
+    public synchronized Dimension getMaximumSize() {
         Dimension maximumSize = new Dimension();
         for (int i = 0; i < importProcess.getReader().getSeriesCount(); i++) {
             importProcess.getReader().setSeries(i);
@@ -126,7 +288,7 @@ public class ImageFile {
         return maximumSize;
     }
 
-    public ArrayList<Dimension> getImagesDimensions() {
+    public synchronized ArrayList<Dimension> getImagesDimensions() {
         ArrayList<Dimension> dimensions = new ArrayList<>();
         for (int i = 0; i < importProcess.getReader().getSeriesCount(); i++) {
             importProcess.getReader().setSeries(i);
@@ -141,8 +303,10 @@ public class ImageFile {
             // lazy initialization
             if(this.cached_thumbs == null) {
                 this.cached_thumbs = new ArrayList<>();
-                for (int i = 0; i < bufferedEditorImageReader.getImageCount(); i++)
-                    cached_thumbs.add(this.bufferedEditorImageReader.openThumbImage(i));
+                for (int i = 0; i < nImages; i++) {
+                    final int index = i;
+                    cached_thumbs.add(editorReaders.read(reader -> reader.openThumbImage(index)));
+                }
             }
         } catch (FormatException | IOException e) {
             e.printStackTrace();
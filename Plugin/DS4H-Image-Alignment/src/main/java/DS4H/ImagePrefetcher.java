@@ -0,0 +1,158 @@
+package DS4H;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decodes the images that are likely to be shown next in the background, and stores them in the image cache.
+ * Navigation is nearly always sequential, so the images following the current one in the direction of the last move
+ * are loaded first. When the direction changes, the prefetches that are not needed anymore are cancelled.
+ * An image requested by the user while its prefetch is still queued is not waited for: the prefetch is cancelled, and
+ * the image is loaded right away by the caller.
+ */
+public class ImagePrefetcher {
+    // how many images are loaded ahead of the current one
+    public static final int PREFETCH_DISTANCE = 2;
+
+    private final ImagesManager manager;
+    private final ImageCache cache;
+    private final ExecutorService executor;
+    private final Map<Integer, Prefetch> pending = new HashMap<>();
+    private int lastDirection = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public ImagePrefetcher(ImagesManager manager, ImageCache cache) {
+        this.manager = manager;
+        this.cache = cache;
+        // a single low priority thread: prefetching must never slow down what the user is doing
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "DS4H-prefetch");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * Schedules the loading of the images around the given one, giving priority to the ones in the given direction (1 or -1)
+     */
+    public synchronized void prefetch(int index, int direction) {
+        if (direction != lastDirection) {
+            cancel();
+            lastDirection = direction;
+        }
+        pending.values().removeIf(prefetch -> prefetch.future.isDone());
+        for (int distance = 1; distance <= PREFETCH_DISTANCE; distance++)
+            schedule(index + direction * distance);
+        schedule(index - direction);
+    }
+
+    private void schedule(int index) {
+        if (index < 0 || index >= manager.getNImages() || pending.containsKey(index))
+            return;
+        // the file is resolved now, so that a later change of the stack can't make the task load the wrong image
+        final ImageFile imageFile = manager.getImageFile(index);
+        final int localIndex = manager.getLocalIndex(index);
+        if (cache.contains(imageFile, localIndex))
+            return;
+        final AtomicBoolean started = new AtomicBoolean();
+        pending.put(index, new Prefetch(started, executor.submit(() -> {
+            // the caller may have taken the image over while the task was queued
+            if (!started.compareAndSet(false, true) || cache.contains(imageFile, localIndex))
+                return;
+            try {
+                cache.put(imageFile, localIndex, imageFile.openEditorImage(localIndex));
+            } catch (Exception e) {
+                // the image will just be loaded again when it is requested
+                e.printStackTrace();
+            }
+        })));
+    }
+
+    /**
+     * Waits for the prefetch of the given image if it is in progress, so that the same image is never decoded twice at
+     * once. A prefetch that has not started yet is cancelled instead, so that the caller loads the image itself without
+     * waiting for the ones queued before it.
+     */
+    public void await(int index) {
+        Prefetch prefetch;
+        synchronized (this) {
+            prefetch = pending.get(index);
+            if (prefetch == null)
+                return;
+            if (prefetch.started.compareAndSet(false, true)) {
+                prefetch.future.cancel(false);
+                pending.remove(index);
+                return;
+            }
+        }
+        try {
+            prefetch.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (CancellationException | ExecutionException e) {
+            // the image will just be loaded by the caller
+        }
+    }
+
+    /**
+     * Records whether an image requested by the user was already available
+     */
+    public void recordAccess(boolean hit) {
+        (hit ? hits : misses).incrementAndGet();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Cancels all the scheduled prefetches that have not started yet, for example because the images of the stack have
+     * changed. The ones in progress are left to finish, and stay pending so that await still waits for them.
+     */
+    public synchronized void cancel() {
+        Iterator<Prefetch> prefetches = pending.values().iterator();
+        while (prefetches.hasNext()) {
+            Prefetch prefetch = prefetches.next();
+            // a decode already in progress is left to finish: interrupting it could break the state of the reader
+            if (prefetch.started.compareAndSet(false, true)) {
+                prefetch.future.cancel(false);
+                prefetches.remove();
+            }
+            else if (prefetch.future.isDone())
+                prefetches.remove();
+        }
+    }
+
+    public synchronized void dispose() {
+        cancel();
+        executor.shutdown();
+    }
+
+    /**
+     * A scheduled prefetch, and whether its image has been taken by the prefetch thread or by the caller
+     */
+    private static class Prefetch {
+        private final AtomicBoolean started;
+        private final Future<?> future;
+
+        private Prefetch(AtomicBoolean started, Future<?> future) {
+            this.started = started;
+            this.future = future;
+        }
+    }
+}
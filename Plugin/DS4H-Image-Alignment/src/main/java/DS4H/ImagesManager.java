@@ -2,19 +2,32 @@ package DS4H;
 
 import DS4H.BufferedImage.BufferedImage;
 import ij.ImagePlus;
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
 import ij.plugin.frame.RoiManager;
 import loci.formats.FormatException;
 
 import java.awt.*;
+import java.awt.geom.Point2D;
 import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Set;
 
 public class ImagesManager implements ListIterator<ImagePlus>{
+    // name of the landmarks placed where they were on another image because they could not be matched, until they are moved
+    public static final String COPIED_LANDMARK_NAME = "?";
     private List<ImageFile> imageFiles;
     private int imageIndex;
+    private final ImageCache cache = new ImageCache();
+    private final ImagePrefetcher prefetcher = new ImagePrefetcher(this, cache);
+    // files whose landmark file could not be loaded: it is never overwritten nor deleted, so that it can still be recovered
+    private final Set<ImageFile> unloadedLandmarks = new HashSet<>();
+    // files whose landmarks have changed but could not be written
+    private final Set<ImageFile> unsavedLandmarks = new HashSet<>();
     public ImagesManager(String pathFile) throws ImageOversizeException, FormatException, IOException {
         this.imageFiles = new  ArrayList<>();
         this.imageIndex = -1;
@@ -23,25 +36,86 @@ public class ImagesManager implements ListIterator<ImagePlus>{
 
     public void addFile(String pathFile) throws IOException, FormatException, ImageOversizeException {
         ImageFile imageFile = new ImageFile(pathFile);
+        try {
+            LandmarkStore.load(imageFile);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            unloadedLandmarks.add(imageFile);
+        }
         this.imageFiles.add(imageFile);
     }
 
-    private BufferedImage getImage(int index, boolean wholeSlide) {
-        int progressive = 0;
-        ImageFile imageFile = null;
-        for (int i = 0; i < imageFiles.size(); i++) {
+    /**
+     * Writes beside its file the landmarks of the image at the given index once they have been added, moved or deleted,
+     * and returns false if they could not be written
+     */
+    public boolean saveLandmarks(int index) {
+        return saveLandmarks(getImageFile(index));
+    }
 
-            if(progressive + imageFiles.get(i).getNImages() > index) {
-                imageFile = imageFiles.get(i);
-                break;
-            }
-            progressive+=imageFiles.get(i).getNImages();
+    /**
+     * Writes beside each file the landmarks of all the images once they have been replaced, and returns false if any
+     * of them could not be written
+     */
+    public boolean saveLandmarks() {
+        boolean saved = true;
+        for (ImageFile imageFile : imageFiles)
+            saved &= saveLandmarks(imageFile);
+        return saved;
+    }
+
+    /**
+     * Writes again the changed landmarks that could not be written, and returns false if some of them are still not written
+     */
+    public boolean saveUnsavedLandmarks() {
+        for (ImageFile imageFile : new ArrayList<>(unsavedLandmarks))
+            saveLandmarks(imageFile);
+        return unsavedLandmarks.isEmpty();
+    }
+
+    private boolean saveLandmarks(ImageFile imageFile) {
+        if (unloadedLandmarks.contains(imageFile)) {
+            unsavedLandmarks.add(imageFile);
+            return false;
+        }
+        try {
+            LandmarkStore.save(imageFile);
+            unsavedLandmarks.remove(imageFile);
+            return true;
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            unsavedLandmarks.add(imageFile);
+            return false;
         }
+    }
+
+    private BufferedImage getImage(int index, boolean wholeSlide) {
+        return getImage(index, wholeSlide, PixelFormat.RGB);
+    }
 
+    private BufferedImage getImage(int index, boolean wholeSlide, PixelFormat format) {
+        ImageFile imageFile = getImageFile(index);
         BufferedImage image = null;
         try {
-            image = imageFile.getImage(index - progressive,  wholeSlide);
+            int localIndex = getLocalIndex(index);
+            if(wholeSlide && !format.isRGB())
+                image = imageFile.getNativeImage(localIndex);
+            else if(wholeSlide)
+                image = imageFile.getImage(localIndex, true);
+            else {
+                prefetcher.await(index);
+                java.awt.image.BufferedImage decoded = cache.get(imageFile, localIndex);
+                prefetcher.recordAccess(decoded != null);
+                if(decoded == null) {
+                    decoded = imageFile.openEditorImage(localIndex);
+                    cache.put(imageFile, localIndex, decoded);
+                }
+                image = imageFile.getEditorImage(localIndex, decoded);
+            }
             image.setFilePath(imageFile.getPathFile());
+            image.setImageFile(imageFile, localIndex);
             image.setTitle(MessageFormat.format("Editor Image {0}/{1}", index + 1, this.getNImages()));
         } catch (Exception e) {
             e.printStackTrace();
@@ -59,7 +133,9 @@ public class ImagesManager implements ListIterator<ImagePlus>{
         if(!hasNext())
             return null;
         imageIndex++;
-        return getImage(imageIndex, false);
+        BufferedImage image = getImage(imageIndex, false);
+        prefetcher.prefetch(imageIndex, 1);
+        return image;
     }
 
     @Override
@@ -72,7 +148,9 @@ public class ImagesManager implements ListIterator<ImagePlus>{
         if(!hasPrevious())
             return null;
         imageIndex--;
-        return getImage(imageIndex, false);
+        BufferedImage image = getImage(imageIndex, false);
+        prefetcher.prefetch(imageIndex, -1);
+        return image;
     }
 
     @Override
@@ -106,6 +184,9 @@ public class ImagesManager implements ListIterator<ImagePlus>{
      * This flag indicates whenever the manger uses a reduced-size image for compatibility
      */
     public void dispose() {
+        this.prefetcher.dispose();
+        this.cache.clear();
+        LeastSquareImageTransformation.clearTransforms();
         this.imageFiles.forEach(imageFile -> {
             try {
                 imageFile.dispose();
@@ -123,6 +204,26 @@ public class ImagesManager implements ListIterator<ImagePlus>{
         return this.getImage(index, wholeSlide);
     }
 
+    /**
+     * Returns the image at the given index at full resolution, with its pixels in the given format (as returned by getPixelFormat)
+     */
+    public BufferedImage get(int index, PixelFormat format) {
+        return this.getImage(index, true, format);
+    }
+
+    /**
+     * Returns the format of the pixels shared by the images of all the files.
+     * When they have different formats, or any of them can only be shown as RGB, all of them are converted to RGB.
+     */
+    public PixelFormat getPixelFormat() {
+        PixelFormat format = imageFiles.get(0).getPixelFormat();
+        for (ImageFile imageFile : imageFiles) {
+            if (format == null || !format.equals(imageFile.getPixelFormat()))
+                return PixelFormat.RGB;
+        }
+        return format;
+    }
+
     public List<RoiManager> getRoiManagers() {
         List<RoiManager> result = new ArrayList<>();
 
@@ -130,6 +231,44 @@ public class ImagesManager implements ListIterator<ImagePlus>{
         return  result;
     }
 
+    /**
+     * Returns the landmarks of each image of the stack. Unlike the RoiManagers, they also exist in headless runs
+     */
+    public List<Landmarks> getLandmarks() {
+        List<Landmarks> result = new ArrayList<>();
+        this.imageFiles.forEach(imageFile -> result.addAll(imageFile.getLandmarks()));
+        return result;
+    }
+
+    /**
+     * Adds a landmark to the image at the given index of the stack, at the given point of its full resolution image,
+     * and returns it
+     */
+    public Roi addLandmark(int index, Point2D point) {
+        ImageFile imageFile = getImageFile(index);
+        Dimension editorDimension = imageFile.getEditorImageDimension();
+        Dimension wholeSlideDimension = imageFile.getWholeSlideDimension();
+        double x = point.getX() * editorDimension.width / wholeSlideDimension.width;
+        double y = point.getY() * editorDimension.height / wholeSlideDimension.height;
+        // sizes of the landmarks added by the editor
+        int size = Math.max(3, (int)(editorDimension.width * 0.03));
+        int strokeWidth = Math.max(3, (int)(editorDimension.width * 0.0025));
+        Roi landmark = createLandmark(x, y, size, strokeWidth);
+        imageFile.getLandmarks().get(getLocalIndex(index)).addRoi(landmark);
+        return landmark;
+    }
+
+    /**
+     * Returns a landmark with the given corner (the position used by the alignment), as the editor draws it
+     */
+    public static Roi createLandmark(double x, double y, double size, float strokeWidth) {
+        OvalRoi landmark = new OvalRoi(x, y, size, size);
+        landmark.setStrokeWidth(strokeWidth);
+        landmark.setStrokeColor(Color.BLUE);
+        landmark.setName("•");
+        return landmark;
+    }
+
     public Dimension getMaximumSize() {
         Dimension maximumSize = new Dimension();
         imageFiles.forEach(imageFile -> {
@@ -149,6 +288,40 @@ public class ImagesManager implements ListIterator<ImagePlus>{
         return dimensions;
     }
 
+    /**
+     * Returns the ImageFile that contains the image at the given index of the stack
+     */
+    public ImageFile getImageFile(int index) {
+        int progressive = 0;
+        for (ImageFile imageFile : imageFiles) {
+            if(progressive + imageFile.getNImages() > index)
+                return imageFile;
+            progressive += imageFile.getNImages();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the index that the image at the given index of the stack has inside its own ImageFile
+     */
+    public int getLocalIndex(int index) {
+        int progressive = 0;
+        for (ImageFile imageFile : imageFiles) {
+            if(progressive + imageFile.getNImages() > index)
+                return index - progressive;
+            progressive += imageFile.getNImages();
+        }
+        return -1;
+    }
+
+    public ImageCache getCache() {
+        return this.cache;
+    }
+
+    public ImagePrefetcher getPrefetcher() {
+        return this.prefetcher;
+    }
+
     public List<ImageFile> getImageFiles() {
         return this.imageFiles;
     }
@@ -158,7 +331,11 @@ public class ImagesManager implements ListIterator<ImagePlus>{
      * @param index
      */
     public void removeImageFile(int index) {
-        this.imageFiles.remove(index);
+        this.prefetcher.cancel();
+        ImageFile imageFile = this.imageFiles.remove(index);
+        this.cache.invalidate(imageFile);
+        this.unloadedLandmarks.remove(imageFile);
+        this.unsavedLandmarks.remove(imageFile);
         this.imageIndex = this.imageIndex >= this.getNImages() ? index - 1 : index;
     }
 
@@ -0,0 +1,62 @@
+package DS4H;
+
+import java.awt.geom.Point2D;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads landmarks from CSV files with a row for each landmark: the index of its image in the stack (starting from 1),
+ * then its x and y coordinates in pixels of the full resolution image. The landmarks of each image are matched in the
+ * order of the rows. A header row, empty rows and rows starting with # are skipped.
+ */
+public class LandmarkCsv {
+    /**
+     * Returns the landmarks of the given file, by index of their image in the stack (starting from 0)
+     */
+    public static Map<Integer, List<Point2D>> read(File file) throws IOException {
+        Map<Integer, List<Point2D>> landmarks = new TreeMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] fields = line.split("[,;\\t]");
+                if (lineNumber == 1 && !isNumber(fields[0]))
+                    continue;
+                try {
+                    if (fields.length < 3)
+                        throw new NumberFormatException();
+                    int image = Integer.parseInt(fields[0].trim());
+                    if (image < 1)
+                        throw new NumberFormatException();
+                    Point2D point = new Point2D.Double(Double.parseDouble(fields[1].trim()), Double.parseDouble(fields[2].trim()));
+                    landmarks.computeIfAbsent(image - 1, i -> new ArrayList<>()).add(point);
+                }
+                catch (NumberFormatException e) {
+                    throw new IOException("Invalid landmark at line " + lineNumber + " of " + file + ": expected image,x,y");
+                }
+            }
+        }
+        return landmarks;
+    }
+
+    private static boolean isNumber(String field) {
+        try {
+            Double.parseDouble(field.trim());
+            return true;
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
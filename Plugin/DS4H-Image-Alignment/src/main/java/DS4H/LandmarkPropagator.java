@@ -0,0 +1,183 @@
+package DS4H;
+
+import ij.Prefs;
+import ij.gui.Roi;
+import mpicbg.models.Point;
+
+import java.awt.*;
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Places the landmarks of an image of serial sections from the ones of the previous image. The sections are about at
+ * the same place of their images, so each landmark of the previous image is searched only a few percent of the image
+ * around the same position of the next one, by matching a window around it on reduced images (see LandmarkRefiner).
+ * Landmarks that can't be matched are placed at the same position, as "COPY CORNERS" does, to be moved by hand: they
+ * are named ImagesManager.COPIED_LANDMARK_NAME, so that they can be told from the matched ones.
+ * Propagation is off unless enabled from the editor, since it reads the images in the background.
+ * The landmarks of the next image are matched in the background as soon as the ones of the current image change, so
+ * that they are ready by the time the next image is shown.
+ */
+public class LandmarkPropagator {
+    public static final String ENABLED_PREFERENCE = "DS4H.propagateLandmarks";
+    // how far the landmarks are searched from their position on the previous image, in percent of the longest side of the image
+    public static final String RADIUS_PREFERENCE = "DS4H.propagationRadius";
+    private static final double DEFAULT_RADIUS = 5;
+    // longest side in pixels of the reduced images the landmarks are matched on
+    private static final int SIZE = 1024;
+
+    private final ImagesManager manager;
+    private final LandmarkRefiner refiner;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "DS4H landmark propagation");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Propagation pending;
+
+    public LandmarkPropagator(ImagesManager manager) {
+        this.manager = manager;
+        this.refiner = new LandmarkRefiner(manager);
+    }
+
+    public static boolean isEnabled() {
+        return Prefs.get(ENABLED_PREFERENCE, false);
+    }
+
+    public static void setEnabled(boolean enabled) {
+        Prefs.set(ENABLED_PREFERENCE, enabled);
+    }
+
+    /**
+     * Starts matching the landmarks of the image at the given index on the next one in the background, unless the next
+     * image already has landmarks or they are already being matched
+     */
+    public synchronized void prepare(int index) {
+        if (index + 1 >= manager.getNImages() || getPoints(index + 1).size() != 0)
+            return;
+        List<Point> points = getPoints(index);
+        if (points.isEmpty() || (pending != null && pending.isFor(index + 1, points)))
+            return;
+        cancel();
+        pending = new Propagation(manager.getImageFile(index + 1), manager.getLocalIndex(index + 1), points,
+                executor.submit(() -> propagate(index, points, index + 1)));
+    }
+
+    /**
+     * Adds to the image at the given index the landmarks matched from the previous image, waiting for them if they are
+     * still being matched, and returns true if any have been added. Images that already have landmarks are left as they are.
+     */
+    public boolean apply(int index) throws Exception {
+        if (index == 0 || getPoints(index).size() != 0)
+            return false;
+        List<Point> points = getPoints(index - 1);
+        if (points.isEmpty())
+            return false;
+        Future<List<Landmark>> landmarks;
+        synchronized (this) {
+            prepare(index - 1);
+            landmarks = pending.landmarks;
+        }
+        for (Landmark landmark : landmarks.get()) {
+            Roi roi = manager.addLandmark(index, landmark.location);
+            if (!landmark.matched)
+                roi.setName(ImagesManager.COPIED_LANDMARK_NAME);
+        }
+        return true;
+    }
+
+    /**
+     * Drops the landmarks being matched, e.g. because the images have changed. Matching is not interrupted, since it would
+     * close the files being read, but its result is not used.
+     */
+    public synchronized void cancel() {
+        if (pending != null)
+            pending.landmarks.cancel(false);
+        pending = null;
+    }
+
+    public void dispose() {
+        cancel();
+        executor.shutdown();
+    }
+
+    /**
+     * Returns the positions on the image at the given index of the given landmarks of the image at sourceIndex, in the
+     * coordinates of its full resolution image
+     */
+    private List<Landmark> propagate(int sourceIndex, List<Point> points, int index) throws Exception {
+        Dimension sourceDimension = manager.getImageFile(sourceIndex).getWholeSlideDimension();
+        Dimension dimension = manager.getImageFile(index).getWholeSlideDimension();
+        int longestSide = Math.max(dimension.width, dimension.height);
+        double scale = Math.max(1, (double)longestSide / SIZE);
+        int radius = (int)Math.ceil(Prefs.get(RADIUS_PREFERENCE, DEFAULT_RADIUS) / 100 * longestSide / scale);
+
+        List<Integer> landmarks = new ArrayList<>();
+        for (int j = 0; j < points.size(); j++)
+            landmarks.add(j);
+        List<Landmark> propagated = new ArrayList<>();
+        new AlignmentEngine(0).run(landmarks, j -> {
+            double[] location = points.get(j).getL();
+            Point position = new Point(new double[] {
+                    location[0] * dimension.getWidth() / sourceDimension.width,
+                    location[1] * dimension.getHeight() / sourceDimension.height
+            });
+            double[] match = refiner.match(sourceIndex, points.get(j), index, position, scale, radius);
+            return match != null ? new Landmark(match, true) : new Landmark(position.getL(), false);
+        }, (j, landmark) -> propagated.add(landmark));
+        return propagated;
+    }
+
+    /**
+     * Returns the landmarks of the image at the given index, in the coordinates of its full resolution image
+     */
+    private List<Point> getPoints(int index) {
+        ImageFile imageFile = manager.getImageFile(index);
+        return LeastSquareImageTransformation.getPoints(imageFile.getLandmarks().get(manager.getLocalIndex(index)),
+                imageFile.getWholeSlideDimension(), imageFile.getEditorImageDimension());
+    }
+
+    /**
+     * A landmark placed on the next image, and whether it has been matched there or only copied from the previous one
+     */
+    private static class Landmark {
+        private final Point2D location;
+        private final boolean matched;
+
+        private Landmark(double[] location, boolean matched) {
+            this.location = new Point2D.Double(location[0], location[1]);
+            this.matched = matched;
+        }
+    }
+
+    /**
+     * The landmarks being matched on an image, and the ones of the previous image they are matched from
+     */
+    private class Propagation {
+        private final ImageFile imageFile;
+        private final int localIndex;
+        private final List<Point> points;
+        private final Future<List<Landmark>> landmarks;
+
+        private Propagation(ImageFile imageFile, int localIndex, List<Point> points, Future<List<Landmark>> landmarks) {
+            this.imageFile = imageFile;
+            this.localIndex = localIndex;
+            this.points = points;
+            this.landmarks = landmarks;
+        }
+
+        private boolean isFor(int index, List<Point> sourcePoints) {
+            if (manager.getImageFile(index) != imageFile || manager.getLocalIndex(index) != localIndex || sourcePoints.size() != points.size())
+                return false;
+            for (int i = 0; i < points.size(); i++)
+                if (!Arrays.equals(points.get(i).getL(), sourcePoints.get(i).getL()))
+                    return false;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package DS4H;
+
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.gui.Roi;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import mpicbg.models.Point;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Moves the landmarks of all the images onto the exact position of the matching landmarks of the first image, with
+ * sub-pixel accuracy. Landmarks are placed on a reduced editor image, so each of them can be several full resolution
+ * pixels away from its match: for each pair, only a small window around the landmark of the first image and a slightly
+ * bigger one around the landmark of the other image are read at full resolution, and the position where the two windows
+ * have the highest normalized cross-correlation is refined to a fraction of a pixel by a parabolic fit of its neighbours.
+ * The correlation is first searched on windows reduced to a few pixels per step (never so few that the reduced
+ * template loses its details), then only around the best step at full resolution. Landmarks whose windows don't correlate well enough, or that are too close to the border of their image,
+ * are left where they are. Windows are read and matched for several landmarks at once.
+ * Landmarks can also be matched on the images reduced by a given scale, reading the windows from their resolution
+ * levels, as CoarseToFineRegistration does.
+ */
+public class LandmarkRefiner {
+    // side in full resolution pixels of the window matched around each landmark of the first image
+    public static final String WINDOW_PREFERENCE = "DS4H.refineWindow";
+    // lowest correlation (from -1 to 1) for a landmark to be moved
+    public static final String CORRELATION_PREFERENCE = "DS4H.refineCorrelation";
+    private static final int DEFAULT_WINDOW = 96;
+    private static final double DEFAULT_CORRELATION = 0.5;
+    // landmarks are searched this many editor pixels away, so that the clicking error of the editor is covered
+    private static final double EDITOR_RADIUS = 4;
+    private static final int MIN_RADIUS = 8;
+    private static final int MAX_RADIUS = 512;
+    // full resolution offsets searched on each side at the reduced scale
+    private static final int COARSE_RADIUS = 16;
+    // smallest side in pixels of the reduced template: fewer pixels match the wrong features as well as the right ones
+    private static final int MIN_COARSE_TEMPLATE = 12;
+
+    private final ImagesManager manager;
+    private final int window;
+    private final double minCorrelation;
+
+    public LandmarkRefiner(ImagesManager manager) {
+        this.manager = manager;
+        this.window = Math.max(8, (int)Prefs.get(WINDOW_PREFERENCE, DEFAULT_WINDOW));
+        this.minCorrelation = Prefs.get(CORRELATION_PREFERENCE, DEFAULT_CORRELATION);
+    }
+
+    /**
+     * Moves the landmarks of all the images but the first one onto their match at full resolution, and returns how many
+     * have been moved. All the images must have the same number of landmarks.
+     */
+    public int refine() throws Exception {
+        return refine(1, 0);
+    }
+
+    /**
+     * Moves the landmarks of all the images but the first one onto their match in the images reduced by the given scale
+     * (full resolution pixels for each reduced pixel), searching up to the given number of reduced pixels away, or as far
+     * as the clicking error of the editor if it is 0. Returns how many landmarks have been moved.
+     */
+    public int refine(double scale, int radius) throws Exception {
+        int nImages = manager.getNImages();
+        List<Point> referencePoints = getPoints(0);
+        int count = referencePoints.size();
+        List<List<Point>> points = new ArrayList<>();
+        for (int i = 1; i < nImages; i++) {
+            points.add(getPoints(i));
+            if (points.get(i - 1).size() != count)
+                throw new IllegalArgumentException("Image " + (i + 1) + " has " + points.get(i - 1).size() + " landmarks instead of " + count);
+        }
+        if (count == 0)
+            return 0;
+
+        List<Integer> landmarks = new ArrayList<>();
+        for (int j = 0; j < count; j++)
+            landmarks.add(j);
+        long windowBytes = (long)window * window * Float.BYTES * 2;
+        List<FloatProcessor> templates = new ArrayList<>();
+        new AlignmentEngine(windowBytes).run(landmarks, j -> readTemplate(0, referencePoints.get(j), scale), (j, template) -> templates.add(template));
+
+        List<Integer> pairs = new ArrayList<>();
+        for (int pair = 0; pair < (nImages - 1) * count; pair++)
+            pairs.add(pair);
+        int[] refined = {0};
+        // the search windows are the biggest ones, and their reduced copies take a fraction of them
+        long searchBytes = (long)(window + 2 * MAX_RADIUS) * (window + 2 * MAX_RADIUS) * Float.BYTES * 2;
+        new AlignmentEngine(searchBytes).run(pairs, pair -> {
+            int i = pair / count + 1;
+            int j = pair % count;
+            FloatProcessor template = templates.get(j);
+            return template == null ? null : match(i, points.get(i - 1).get(j), template, referencePoints.get(j), scale, radius);
+        }, (pair, position) -> {
+            if (position == null)
+                return;
+            moveLandmark(pair / count + 1, pair % count, position);
+            refined[0]++;
+        });
+        return refined[0];
+    }
+
+    /**
+     * Returns the landmarks of the image at the given index, in the coordinates of its full resolution image
+     */
+    private List<Point> getPoints(int index) {
+        ImageFile imageFile = manager.getImageFile(index);
+        return LeastSquareImageTransformation.getPoints(imageFile.getLandmarks().get(manager.getLocalIndex(index)),
+                imageFile.getWholeSlideDimension(), imageFile.getEditorImageDimension());
+    }
+
+    /**
+     * Returns the full resolution position in the image at the given index matching the given landmark of the image at
+     * referenceIndex, searching around the given position on the images reduced by the given scale, or null if no good
+     * enough match has been found. Positions are in the coordinates of the full resolution images.
+     */
+    public double[] match(int referenceIndex, Point referencePoint, int index, Point point, double scale, int radius) throws Exception {
+        FloatProcessor template = readTemplate(referenceIndex, referencePoint, scale);
+        return template == null ? null : match(index, point, template, referencePoint, scale, radius);
+    }
+
+    /**
+     * Returns the window of the image at the given index reduced by the given scale, centered on the given landmark, or
+     * null if it is too close to the border
+     */
+    private FloatProcessor readTemplate(int index, Point point, double scale) throws Exception {
+        double x = point.getL()[0] / scale;
+        double y = point.getL()[1] / scale;
+        Rectangle region = new Rectangle((int)Math.round(x) - window / 2, (int)Math.round(y) - window / 2, window, window);
+        return readWindow(index, region, scale);
+    }
+
+    /**
+     * Returns the full resolution position of the given landmark of the image at the given index once matched to the
+     * window of the reference landmark, or null if no good enough match has been found
+     */
+    private double[] match(int index, Point point, FloatProcessor template, Point referencePoint, double scale, int radius) throws Exception {
+        if (radius <= 0) {
+            ImageFile imageFile = manager.getImageFile(index);
+            double editorScale = imageFile.getWholeSlideDimension().getWidth() / imageFile.getEditorImageDimension().getWidth();
+            radius = Math.max(MIN_RADIUS, (int)Math.ceil(EDITOR_RADIUS * editorScale / scale));
+        }
+        radius = Math.min(MAX_RADIUS, radius);
+
+        double x = point.getL()[0] / scale;
+        double y = point.getL()[1] / scale;
+        Rectangle region = new Rectangle((int)Math.round(x) - window / 2 - radius, (int)Math.round(y) - window / 2 - radius,
+                window + 2 * radius, window + 2 * radius);
+        FloatProcessor search = readWindow(index, region, scale);
+        if (search == null)
+            return null;
+
+        Template fullTemplate = new Template(template);
+        // big radii would need a bigger step, but the template must keep enough details to be matched
+        int step = Math.max(1, Math.min(radius / COARSE_RADIUS, window / MIN_COARSE_TEMPLATE));
+        int minX = 0, maxX = 2 * radius, minY = 0, maxY = 2 * radius;
+        if (step > 1) {
+            FloatProcessor coarseSearch = downsample(search, step);
+            Template coarseTemplate = new Template(downsample(template, step));
+            int[] coarse = findPeak(coarseSearch, coarseTemplate, 0, coarseSearch.getWidth() - coarseTemplate.width,
+                    0, coarseSearch.getHeight() - coarseTemplate.height);
+            minX = Math.max(0, (coarse[0] - 1) * step);
+            maxX = Math.min(2 * radius, (coarse[0] + 1) * step);
+            minY = Math.max(0, (coarse[1] - 1) * step);
+            maxY = Math.min(2 * radius, (coarse[1] + 1) * step);
+        }
+        int[] peak = findPeak(search, fullTemplate, minX, maxX, minY, maxY);
+        int peakX = peak[0];
+        int peakY = peak[1];
+        double correlation = fullTemplate.correlate(search, peakX, peakY);
+        // a peak on the border of the search window may just be the slope towards a match beyond it
+        if (correlation < minCorrelation || peakX <= 0 || peakY <= 0 || peakX >= 2 * radius || peakY >= 2 * radius)
+            return null;
+
+        double offsetX = interpolatePeak(fullTemplate.correlate(search, peakX - 1, peakY), correlation, fullTemplate.correlate(search, peakX + 1, peakY));
+        double offsetY = interpolatePeak(fullTemplate.correlate(search, peakX, peakY - 1), correlation, fullTemplate.correlate(search, peakX, peakY + 1));
+        // the reference landmark is not on a pixel boundary, and the template has been read from its closest one
+        double referenceX = referencePoint.getL()[0] / scale;
+        double referenceY = referencePoint.getL()[1] / scale;
+        return new double[] {
+                (region.x + peakX + offsetX + window / 2 + referenceX - Math.round(referenceX)) * scale,
+                (region.y + peakY + offsetY + window / 2 + referenceY - Math.round(referenceY)) * scale
+        };
+    }
+
+    /**
+     * Moves the given landmark of the image at the given index to the given full resolution position
+     */
+    private void moveLandmark(int index, int landmark, double[] position) {
+        ImageFile imageFile = manager.getImageFile(index);
+        Dimension editorDimension = imageFile.getEditorImageDimension();
+        Dimension wholeSlideDimension = imageFile.getWholeSlideDimension();
+        Roi roi = imageFile.getLandmarks().get(manager.getLocalIndex(index)).getRoisAsArray()[landmark];
+        roi.setLocation(position[0] * editorDimension.width / wholeSlideDimension.width,
+                position[1] * editorDimension.height / wholeSlideDimension.height);
+    }
+
+    /**
+     * Reads the given region of the image at the given index reduced by the given scale in grey levels, or returns null
+     * if it doesn't fit in the image. Reduced images are read from the resolution level closest to them, so that only the
+     * full resolution windows are read from the full resolution image.
+     */
+    private FloatProcessor readWindow(int index, Rectangle region, double scale) throws Exception {
+        ImageFile imageFile = manager.getImageFile(index);
+        Dimension dimension = imageFile.getWholeSlideDimension();
+        if (!new Rectangle((int)(dimension.width / scale), (int)(dimension.height / scale)).contains(region))
+            return null;
+        int localIndex = manager.getLocalIndex(index);
+        if (scale != 1)
+            return readLevelWindow(imageFile, localIndex, region, scale);
+        if (imageFile.getPixelFormat() == null)
+            return (FloatProcessor)imageFile.openRegion(localIndex, region).convertToFloat();
+        // the channels are just added: the correlation doesn't depend on their scale
+        float[] grey = new float[region.width * region.height];
+        for (ImageProcessor channel : imageFile.openProcessors(localIndex, region)) {
+            float[] pixels = (float[])channel.convertToFloat().getPixels();
+            for (int p = 0; p < grey.length; p++)
+                grey[p] += pixels[p];
+        }
+        return new FloatProcessor(region.width, region.height, grey);
+    }
+
+    /**
+     * Reads the given region of the given image reduced by the given scale from the smallest resolution level that is at
+     * least as big, resizing it if the level is bigger
+     */
+    private static FloatProcessor readLevelWindow(ImageFile imageFile, int localIndex, Rectangle region, double scale) throws Exception {
+        Dimension dimension = imageFile.getWholeSlideDimension();
+        List<Dimension> levels = imageFile.getResolutionLevels();
+        int level = levels.size() - 1;
+        // levels are rounded to whole pixels, so their scales are slightly off
+        while (level > 0 && dimension.getWidth() / levels.get(level).width > scale * 1.01)
+            level--;
+        double levelScale = dimension.getWidth() / levels.get(level).width;
+        double x = region.x * scale / levelScale;
+        double y = region.y * scale / levelScale;
+        Rectangle levelRegion = new Rectangle((int)Math.floor(x), (int)Math.floor(y),
+                (int)Math.ceil(x + region.width * scale / levelScale) - (int)Math.floor(x),
+                (int)Math.ceil(y + region.height * scale / levelScale) - (int)Math.floor(y));
+        levelRegion = levelRegion.intersection(new Rectangle(levels.get(level)));
+        ImageProcessor ip = new ImagePlus("", imageFile.openLevelRegion(localIndex, level, levelRegion)).getProcessor().convertToFloat();
+        if (ip.getWidth() != region.width || ip.getHeight() != region.height)
+            ip = ip.resize(region.width, region.height, true);
+        return (FloatProcessor)ip;
+    }
+
+    private static FloatProcessor downsample(FloatProcessor ip, int step) {
+        // bilinear interpolation by default, averaging the pixels of each step
+        return (FloatProcessor)ip.resize(ip.getWidth() / step, ip.getHeight() / step, true);
+    }
+
+    /**
+     * Returns the position of the template in the search window with the highest correlation, among the given ones
+     */
+    private static int[] findPeak(FloatProcessor search, Template template, int minX, int maxX, int minY, int maxY) {
+        int[] peak = {minX, minY};
+        double best = Double.NEGATIVE_INFINITY;
+        for (int y = minY; y <= maxY; y++)
+            for (int x = minX; x <= maxX; x++) {
+                double correlation = template.correlate(search, x, y);
+                if (correlation > best) {
+                    best = correlation;
+                    peak[0] = x;
+                    peak[1] = y;
+                }
+            }
+        return peak;
+    }
+
+    /**
+     * Returns the offset from the center of the vertex of the parabola through the given values
+     */
+    private static double interpolatePeak(double previous, double center, double next) {
+        double curvature = previous - 2 * center + next;
+        if (curvature >= 0)
+            return 0;
+        return Math.max(-0.5, Math.min(0.5, (previous - next) / (2 * curvature)));
+    }
+
+    /**
+     * A window with its mean removed, ready to be correlated with the windows of the same size of a bigger image
+     */
+    private static class Template {
+        private final float[] pixels;
+        private final int width;
+        private final int height;
+        private final double norm;
+
+        private Template(FloatProcessor ip) {
+            width = ip.getWidth();
+            height = ip.getHeight();
+            pixels = ((float[])ip.getPixels()).clone();
+            double mean = 0;
+            for (float pixel : pixels)
+                mean += pixel;
+            mean /= pixels.length;
+            double sum = 0;
+            for (int p = 0; p < pixels.length; p++) {
+                pixels[p] -= mean;
+                sum += pixels[p] * pixels[p];
+            }
+            norm = Math.sqrt(sum);
+        }
+
+        /**
+         * Returns the normalized cross-correlation of the template with the window of the search image at the given position
+         */
+        private double correlate(FloatProcessor search, int x, int y) {
+            float[] searchPixels = (float[])search.getPixels();
+            int searchWidth = search.getWidth();
+            double sum = 0, sumSquares = 0, product = 0;
+            for (int ty = 0; ty < height; ty++) {
+                int offset = (y + ty) * searchWidth + x;
+                int templateOffset = ty * width;
+                for (int tx = 0; tx < width; tx++) {
+                    double value = searchPixels[offset + tx];
+                    sum += value;
+                    sumSquares += value * value;
+                    product += value * pixels[templateOffset + tx];
+                }
+            }
+            double variance = sumSquares - sum * sum / pixels.length;
+            // flat windows, such as the background, match anything
+            if (norm == 0 || variance <= 0)
+                return 0;
+            return product / (norm * Math.sqrt(variance));
+        }
+    }
+}
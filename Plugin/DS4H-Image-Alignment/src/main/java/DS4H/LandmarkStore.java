@@ -0,0 +1,140 @@
+package DS4H;
+
+import ij.gui.Roi;
+
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * Keeps the landmarks of each image file in a file beside it, with the same name followed by .landmarks, so that they
+ * are back when the file is opened again.
+ * The file holds the name and size of the image file, the resolution level and dimension of the editor image the
+ * landmarks are placed on, then for each plane with landmarks their position, size and stroke width. Landmarks of a
+ * file whose name or size changed are not loaded, and the ones placed on another level are scaled to the current
+ * editor image.
+ * A landmark file that can't be loaded must not be saved over, or the landmarks it holds would be lost.
+ * Everything is read at once and decoded from memory, so thousands of landmarks load in a few milliseconds.
+ */
+public class LandmarkStore {
+    public static final String EXTENSION = ".landmarks";
+    private static final int MAGIC = 0x4453344C; // DS4L
+    private static final short VERSION = 1;
+    // position (two doubles), size and stroke width (two floats) of each landmark
+    private static final int LANDMARK_BYTES = 2 * 8 + 2 * 4;
+
+    public static File getFile(String imagePath) {
+        return new File(imagePath + EXTENSION);
+    }
+
+    /**
+     * Adds the stored landmarks of the given file to its images, and returns true if there were any to load.
+     * Throws an IOException if there is a landmark file but its landmarks can't be loaded.
+     */
+    public static boolean load(ImageFile imageFile) throws IOException {
+        File file = getFile(imageFile.getPathFile());
+        if (!file.isFile())
+            return false;
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        try {
+            if (buffer.getInt() != MAGIC)
+                throw new IOException(file + " is not a landmark file");
+            short version = buffer.getShort();
+            if (version > VERSION)
+                throw new IOException(file + " has been written by a newer version of the plugin");
+            File imagePath = new File(imageFile.getPathFile());
+            String name = readString(buffer);
+            long length = buffer.getLong();
+            if (!name.equals(imagePath.getName()) || length != imagePath.length())
+                throw new IOException(file + " holds the landmarks of another file, or of an earlier version of " + imagePath.getName());
+
+            int level = buffer.getInt();
+            Dimension dimension = new Dimension(buffer.getInt(), buffer.getInt());
+            Dimension editorDimension = imageFile.getEditorImageDimension();
+            double scaleX = level == imageFile.getEditorLevel() ? 1 : editorDimension.getWidth() / dimension.width;
+            double scaleY = level == imageFile.getEditorLevel() ? 1 : editorDimension.getHeight() / dimension.height;
+
+            List<Landmarks> landmarks = imageFile.getLandmarks();
+            int planes = buffer.getInt();
+            for (int p = 0; p < planes; p++) {
+                int plane = buffer.getInt();
+                int count = buffer.getInt();
+                if (plane < 0 || plane >= landmarks.size()) {
+                    buffer.position(buffer.position() + count * LANDMARK_BYTES);
+                    continue;
+                }
+                Landmarks planeLandmarks = landmarks.get(plane);
+                for (int i = 0; i < count; i++) {
+                    double x = buffer.getDouble() * scaleX;
+                    double y = buffer.getDouble() * scaleY;
+                    double size = buffer.getFloat() * scaleX;
+                    float strokeWidth = buffer.getFloat();
+                    planeLandmarks.addRoi(ImagesManager.createLandmark(x, y, size, strokeWidth));
+                }
+            }
+            return true;
+        }
+        catch (RuntimeException e) {
+            // BufferUnderflowException and the like: the file has been truncated
+            throw new IOException(file + " is damaged", e);
+        }
+    }
+
+    /**
+     * Writes the landmarks of the given file beside it, or deletes the landmark file if there are none left
+     */
+    public static void save(ImageFile imageFile) throws IOException {
+        File file = getFile(imageFile.getPathFile());
+        List<Landmarks> landmarkLists = imageFile.getLandmarks();
+        int planes = 0;
+        int landmarks = 0;
+        for (Landmarks planeLandmarks : landmarkLists) {
+            int count = planeLandmarks.getCount();
+            planes += count > 0 ? 1 : 0;
+            landmarks += count;
+        }
+        if (landmarks == 0) {
+            Files.deleteIfExists(file.toPath());
+            return;
+        }
+
+        File imagePath = new File(imageFile.getPathFile());
+        byte[] name = imagePath.getName().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 2 + 4 + name.length + 8 + 3 * 4 + 4 + planes * 2 * 4 + landmarks * LANDMARK_BYTES);
+        buffer.putInt(MAGIC).putShort(VERSION);
+        buffer.putInt(name.length).put(name).putLong(imagePath.length());
+        Dimension editorDimension = imageFile.getEditorImageDimension();
+        buffer.putInt(imageFile.getEditorLevel()).putInt(editorDimension.width).putInt(editorDimension.height);
+        buffer.putInt(planes);
+        for (int plane = 0; plane < landmarkLists.size(); plane++) {
+            Roi[] rois = landmarkLists.get(plane).getRoisAsArray();
+            if (rois.length == 0)
+                continue;
+            buffer.putInt(plane).putInt(rois.length);
+            for (Roi roi : rois)
+                buffer.putDouble(roi.getXBase()).putDouble(roi.getYBase()).putFloat((float)roi.getFloatWidth()).putFloat(roi.getStrokeWidth());
+        }
+
+        // written aside and then moved, so that a crash never leaves a damaged file in place of the previous one
+        File temporary = new File(file.getPath() + ".tmp");
+        Files.write(temporary.toPath(), buffer.array());
+        try {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
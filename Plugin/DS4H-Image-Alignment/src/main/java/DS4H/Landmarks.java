@@ -0,0 +1,63 @@
+package DS4H;
+
+import ij.gui.Roi;
+import ij.plugin.frame.RoiManager;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The landmarks of an image. In the editor they are kept by a RoiManager, which draws them and lets the user edit them,
+ * but a RoiManager is a window and can't even be created without a display: in headless runs (see BatchAlignment) they
+ * are kept in a plain list instead.
+ */
+public class Landmarks {
+    private final RoiManager roiManager;
+    private final List<Roi> rois;
+
+    public Landmarks() {
+        if (GraphicsEnvironment.isHeadless()) {
+            this.roiManager = null;
+            this.rois = new ArrayList<>();
+        }
+        else {
+            this.roiManager = new RoiManager(false);
+            this.rois = null;
+        }
+    }
+
+    /**
+     * Returns the RoiManager the editor draws the landmarks from, or null in headless runs
+     */
+    public RoiManager getRoiManager() {
+        return roiManager;
+    }
+
+    public Roi[] getRoisAsArray() {
+        return roiManager != null ? roiManager.getRoisAsArray() : rois.toArray(new Roi[0]);
+    }
+
+    public int getCount() {
+        return roiManager != null ? roiManager.getCount() : rois.size();
+    }
+
+    public void addRoi(Roi roi) {
+        if (roiManager != null)
+            roiManager.addRoi(roi);
+        else
+            rois.add(roi);
+    }
+
+    public void reset() {
+        if (roiManager != null)
+            roiManager.reset();
+        else
+            rois.clear();
+    }
+
+    public void dispose() {
+        if (roiManager != null)
+            roiManager.dispose();
+    }
+}
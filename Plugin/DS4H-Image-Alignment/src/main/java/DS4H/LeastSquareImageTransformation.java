@@ -6,11 +6,12 @@ import ij.ImagePlus;
 import ij.ImageStack;
 import ij.io.FileInfo;
 import ij.process.*;
-import mpicbg.ij.Mapping;
 import mpicbg.ij.TransformMeshMapping;
 import mpicbg.models.*;
 import mpicbg.models.Point;
 
+import java.awt.Dimension;
+import java.awt.geom.NoninvertibleTransformException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -19,72 +20,153 @@ import java.util.stream.Collectors;
 public class LeastSquareImageTransformation {
 
     public static int MINIMUM_ROI_NUMBER = 3;
+    // the meshes of the last alignments: aligning again without changing the landmarks reuses them
+    private static final TransformCache transforms = new TransformCache();
+
+    /**
+     * Drops the cached meshes: they belong to the images being aligned, so they are of no use once those are closed.
+     */
+    public static void clearTransforms() {
+        transforms.clear();
+    }
+
     /**
      * Performs a least square transformation between two BufferedImages with a series of fixed parameters.
      */
     public static ImagePlus transform(BufferedImage source, BufferedImage template, boolean rotate) {
-        Mapping<?> mapping;
-        final MovingLeastSquaresTransform t = new MovingLeastSquaresTransform();
-        try {
-            t.setModel( rotate ? AffineModel2D.class : TranslationModel2D.class );
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        t.setAlpha(1.0f);
-        int meshResolution = 32;
+        return transform(source, template, rotate, TransformationModel.MOVING_LEAST_SQUARES);
+    }
 
-        final ImagePlus target = template.createImagePlus();
-        final ImageProcessor ipSource = source.getProcessor();
-        final ImageProcessor ipTarget = source.getProcessor().createProcessor( template.getWidth(), template.getHeight() );
-
-        final List<Point> sourcePoints = Arrays.stream(source.getManager().getRoisAsArray())
-                .map(roi -> {
-                    double oldX = roi.getXBase();
-                    double oldY = roi.getYBase();
-                    double newX = oldX * (source.getWidth() / source.getEditorImageDimension().width);
-                    double newY = oldY * (source.getHeight() / source.getEditorImageDimension().height);
-                    return new Point(new double[]{newX, newY});
-                })
-                .collect(Collectors.toList());
+    /**
+     * Transforms the source image onto the template one with the given model. The rotate flag only applies to moving least squares.
+     * Every slice of the source (e.g. each channel of an image kept in its own pixel type) is warped in the same way.
+     */
+    public static ImagePlus transform(BufferedImage source, BufferedImage template, boolean rotate, TransformationModel model) {
+        return transform(source, template, rotate, model, true);
+    }
 
+    /**
+     * Like transform, choosing whether the source is sampled with bicubic interpolation or with the nearest pixel
+     */
+    public static ImagePlus transform(BufferedImage source, BufferedImage template, boolean rotate, TransformationModel model, boolean interpolate) {
+        CoordinateTransformMesh mesh = null;
+        AbstractAffineModel2D<?> globalModel = null;
+        int meshResolution = 32;
 
-        final List<Point> templatePoints = Arrays.stream(template.getManager().getRoisAsArray())
-                .map(roi -> {
-                    double oldX = roi.getXBase();
-                    double oldY = roi.getYBase();
-                    double newX = oldX * (template.getWidth() / template.getEditorImageDimension().width);
-                    double newY = oldY * (template.getHeight() / template.getEditorImageDimension().height);
-                    return new Point(new double[]{newX, newY});
-                })
-                .collect(Collectors.toList());
-        final int numMatches = Math.min( sourcePoints.size(), templatePoints.size() );
-        final ArrayList<PointMatch> matches = new ArrayList<>();
-        for ( int i = 0; i < numMatches; ++i )
-            matches.add( new PointMatch( sourcePoints.get( i ), templatePoints.get( i ) ) );
+        final ImagePlus target = template.createImagePlus();
+        final ImageStack sourceStack = source.getStack();
+        final ImageStack targetStack = new ImageStack( template.getWidth(), template.getHeight() );
 
+        final List<Point> sourcePoints = getPoints(source.getLandmarks(), new Dimension(source.getWidth(), source.getHeight()), source.getEditorImageDimension());
+        final List<Point> templatePoints = getPoints(template.getLandmarks(), new Dimension(template.getWidth(), template.getHeight()), template.getEditorImageDimension());
         try
         {
-            t.setMatches( matches );
-            mapping = new TransformMeshMapping<>(new CoordinateTransformMesh(t, meshResolution, source.getWidth(), source.getHeight()));
+            // a global model needs no mesh: the image is warped directly with a single affine transformation
+            if ( model.isGlobal() )
+                globalModel = fitGlobal(sourcePoints, templatePoints, model);
+            else
+                mesh = transforms.getMesh(sourcePoints, templatePoints, rotate, source.getWidth(), source.getHeight(), meshResolution);
         }
         catch ( final Exception e )
         {
             IJ.showMessage( "Not enough landmarks selected to find a transformation model." );
             return null;
         }
-        boolean interpolate = true;
-        if ( interpolate )
+        for ( int slice = 1; slice <= sourceStack.getSize(); slice++ )
         {
-            ipSource.setInterpolationMethod( ImageProcessor.BICUBIC );
-            mapping.mapInterpolated( ipSource, ipTarget );
+            final ImageProcessor ipSource = sourceStack.getProcessor( slice );
+            final ImageProcessor ipTarget = ipSource.createProcessor( template.getWidth(), template.getHeight() );
+            if ( globalModel != null )
+            {
+                ipSource.setInterpolationMethod( ImageProcessor.BICUBIC );
+                try
+                {
+                    AffineWarp.warp( ipSource, ipTarget, globalModel.createAffine(), interpolate );
+                }
+                catch ( final NoninvertibleTransformException e )
+                {
+                    IJ.showMessage( "The landmarks selected do not define a valid transformation." );
+                    return null;
+                }
+            }
+            else if ( interpolate )
+            {
+                ipSource.setInterpolationMethod( ImageProcessor.BICUBIC );
+                mapInterpolated( mesh, ipSource, ipTarget );
+            }
+            else
+                new TransformMeshMapping<>( mesh ).map( ipSource, ipTarget );
+            targetStack.addSlice( "", ipTarget );
         }
-        else
-            mapping.map( ipSource, ipTarget );
 
-        target.setProcessor( "Transformed" + source.getTitle(), ipTarget );
+        target.setStack( "Transformed" + source.getTitle(), targetStack );
         return target;
     }
 
+    /**
+     * Maps the source onto the target through the given mesh, interpolating with the interpolation method of the source.
+     * The pixel arrays are sampled directly by the warp kernels whenever they support the pixel type and the interpolation method.
+     */
+    public static void mapInterpolated(CoordinateTransformMesh mesh, ImageProcessor source, ImageProcessor target) {
+        if ( !WarpKernels.isEnabled() || !WarpKernels.supports( source, target ) )
+        {
+            new TransformMeshMapping<>( mesh ).mapInterpolated( source, target );
+            return;
+        }
+        WarpKernels.mapInterpolated( mesh, source, target );
+        if ( WarpKernels.isCheckEnabled() )
+        {
+            final ImageProcessor reference = target.createProcessor( target.getWidth(), target.getHeight() );
+            new TransformMeshMapping<>( mesh ).mapInterpolated( source, reference );
+            IJ.log( "Warp kernels check: " + WarpKernels.countDifferences( target, reference ) + " pixels differ from the generic mapping" );
+        }
+    }
+
+    /**
+     * Returns the given landmarks, scaled from the editor image coordinates to the ones of an image of the given dimension.
+     * If the editor dimension is not known, the landmarks are returned as they are.
+     */
+    public static List<Point> getPoints(Landmarks landmarks, Dimension imageDimension, Dimension editorImageDimension) {
+        final double scaleX = editorImageDimension == null ? 1 : imageDimension.getWidth() / editorImageDimension.getWidth();
+        final double scaleY = editorImageDimension == null ? 1 : imageDimension.getHeight() / editorImageDimension.getHeight();
+        return Arrays.stream(landmarks.getRoisAsArray())
+                .map(roi -> new Point(new double[]{roi.getXBase() * scaleX, roi.getYBase() * scaleY}))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Fits a moving least squares transform that brings the source points onto the template ones
+     */
+    public static MovingLeastSquaresTransform fit(List<Point> sourcePoints, List<Point> templatePoints, boolean rotate) throws Exception {
+        final MovingLeastSquaresTransform t = new MovingLeastSquaresTransform();
+        t.setModel( getModelClass(rotate) );
+        t.setAlpha(1.0f);
+
+        final int numMatches = Math.min( sourcePoints.size(), templatePoints.size() );
+        final ArrayList<PointMatch> matches = new ArrayList<>();
+        for ( int i = 0; i < numMatches; ++i )
+            matches.add( new PointMatch( sourcePoints.get( i ), templatePoints.get( i ) ) );
+        t.setMatches( matches );
+        return t;
+    }
+
+    /**
+     * Fits a single transformation of the given model that brings the source points onto the template ones
+     */
+    public static AbstractAffineModel2D<?> fitGlobal(List<Point> sourcePoints, List<Point> templatePoints, TransformationModel model) throws NotEnoughDataPointsException, IllDefinedDataPointsException {
+        final AbstractAffineModel2D<?> globalModel = model.createModel();
+        final int numMatches = Math.min( sourcePoints.size(), templatePoints.size() );
+        final ArrayList<PointMatch> matches = new ArrayList<>();
+        for ( int i = 0; i < numMatches; ++i )
+            matches.add( new PointMatch( sourcePoints.get( i ), templatePoints.get( i ) ) );
+        globalModel.fit( matches );
+        return globalModel;
+    }
+
+    public static Class<? extends AbstractAffineModel2D<?>> getModelClass(boolean rotate) {
+        return rotate ? AffineModel2D.class : TranslationModel2D.class;
+    }
+
     public static ImagePlus convertToStack(ImagePlus[] images, int count, int width, int height) {
         double min = Double.MAX_VALUE;
         double max = -Double.MAX_VALUE;
@@ -1,13 +1,22 @@
 package DS4H.MainDialog;
 
+import DS4H.BufferedImage.BufferedImage;
+import DS4H.ImageFile;
 import fiji.util.gui.OverlayedImageCanvas;
 import ij.ImagePlus;
+import ij.gui.Overlay;
+import ij.gui.Roi;
 
 import java.awt.*;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
+import java.awt.geom.AffineTransform;
+import java.util.List;
 
 public class CustomCanvas extends OverlayedImageCanvas {
+    // draws the finer resolution levels over the editor image when zooming in
+    private final ViewportRenderer renderer = new ViewportRenderer(this);
+
     public CustomCanvas(ImagePlus imp) {
         super(imp);
         Dimension dim = new Dimension(Math.min(512, imp.getWidth()), Math.min(512, imp.getHeight()));
@@ -48,6 +57,7 @@ public class CustomCanvas extends OverlayedImageCanvas {
         g.setClip(0, 0, dw, dh);
 
         super.paint(g);
+        paintDetail(g, srcRect, mag);
 
         int w = getWidth();
         int h = getHeight();
@@ -58,4 +68,59 @@ public class CustomCanvas extends OverlayedImageCanvas {
         g.fillRect(dw, 0, w - dw, h);
         g.fillRect(0, dh, w, h - dh);
     }
+
+    /**
+     * When the editor image is magnified, draws the visible region again from the resolution level of the file that
+     * best matches the magnification, so that the user sees the real details instead of enlarged pixels.
+     * The tiles of the level are filled in as soon as they are decoded, and the rois are then drawn again on top of them.
+     */
+    private void paintDetail(Graphics g, Rectangle srcRect, double mag) {
+        if (mag <= 1 || !(imp instanceof BufferedImage) || ((BufferedImage)imp).getImageFile() == null)
+            return;
+        BufferedImage image = (BufferedImage)imp;
+        List<Dimension> levels = image.getImageFile().getResolutionLevels();
+        int level = selectLevel(levels, imp.getWidth() * mag);
+        Dimension levelDimension = levels.get(level);
+        if (levelDimension.width <= imp.getWidth())
+            return;
+
+        double scaleX = levelDimension.getWidth() / imp.getWidth();
+        double scaleY = levelDimension.getHeight() / imp.getHeight();
+        int x = (int)Math.floor(srcRect.x * scaleX);
+        int y = (int)Math.floor(srcRect.y * scaleY);
+        Rectangle region = new Rectangle(x, y, (int)Math.ceil((srcRect.x + srcRect.width) * scaleX) - x, (int)Math.ceil((srcRect.y + srcRect.height) * scaleY) - y);
+        region = region.intersection(new Rectangle(levelDimension));
+        if (region.isEmpty())
+            return;
+
+        // level coordinates -> editor image coordinates -> screen coordinates, without rounding
+        Graphics2D g2d = (Graphics2D)g;
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        AffineTransform levelToScreen = new AffineTransform(mag / scaleX, 0, 0, mag / scaleY, -srcRect.x * mag, -srcRect.y * mag);
+        renderer.draw(g2d, image.getImageFile(), image.getImageIndex(), level, levelDimension, region, levelToScreen);
+
+        Overlay overlay = imp.getOverlay();
+        if (overlay != null)
+            for (Roi roi : overlay.toArray())
+                roi.drawOverlay(g);
+        if (imp.getRoi() != null)
+            imp.getRoi().draw(g);
+    }
+
+    /**
+     * Stops rendering the resolution levels, and frees the decoded tiles
+     */
+    public void dispose() {
+        renderer.dispose();
+    }
+
+    /**
+     * Returns the smallest level that has at least one pixel for each screen pixel, or the biggest one if none has
+     */
+    private static int selectLevel(List<Dimension> levels, double displayedWidth) {
+        for (int i = levels.size() - 1; i >= 0; i--)
+            if (levels.get(i).width >= displayedWidth)
+                return i;
+        return 0;
+    }
 }
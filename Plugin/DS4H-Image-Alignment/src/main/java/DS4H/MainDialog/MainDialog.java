@@ -4,7 +4,10 @@ import DS4H.BufferedImage.BufferedImage;
 import DS4H.BufferedImage.OnBufferedImageEventListener;
 import DS4H.BufferedImage.event.IBufferedImageEvent;
 import DS4H.BufferedImage.event.RoiSelectedEvent;
+import DS4H.ImagesManager;
+import DS4H.LandmarkPropagator;
 import DS4H.MainDialog.event.*;
+import DS4H.TransformationModel;
 import DS4H.Utilities;
 import ij.IJ;
 import ij.Prefs;
@@ -18,6 +21,7 @@ import ij.plugin.frame.RoiManager;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.geom.Point2D;
 import java.io.File;
 import java.text.MessageFormat;
 import java.util.Arrays;
@@ -31,6 +35,8 @@ public class MainDialog extends ImageWindow {
     private JPanel cornersJPanel = new JPanel();
     public JList<String> lst_rois;
     private JButton btn_copyCorners;
+    private JButton btn_autoCorners;
+    private JButton btn_refineCorners;
 
     private JPanel actionsJPanel = new JPanel();
     private JCheckBox chk_showPreview;
@@ -43,6 +49,11 @@ public class MainDialog extends ImageWindow {
     private JButton btn_alignImages;
     private JCheckBox chk_rotateImages;
     private JCheckBox chk_keepOriginal;
+    private JCheckBox chk_pyramidalOutput;
+    private JCheckBox chk_keepPixelType;
+    private JCheckBox chk_coarseToFine;
+    private JCheckBox chk_propagateCorners;
+    private JComboBox<TransformationModel> cmb_transformationModel;
 
     private Panel all = new Panel();
     public static BufferedImage currentImage = null;
@@ -88,6 +99,26 @@ public class MainDialog extends ImageWindow {
         chk_keepOriginal.setSelected(true);
         chk_keepOriginal.setEnabled(false);
 
+        chk_pyramidalOutput = new JCheckBox("Pyramidal output");
+        chk_pyramidalOutput.setToolTipText("Save the aligned images together with their lower resolution levels, so that viewers can open them faster.");
+        chk_pyramidalOutput.setSelected(false);
+        chk_pyramidalOutput.setEnabled(false);
+
+        chk_keepPixelType = new JCheckBox("Keep original pixel type");
+        chk_keepPixelType.setToolTipText("Save 8, 16 and 32-bit images with their own pixel type and channels instead of converting them to RGB. It only applies when all the images have the same type.");
+        chk_keepPixelType.setSelected(true);
+        chk_keepPixelType.setEnabled(false);
+
+        chk_coarseToFine = new JCheckBox("Coarse-to-fine registration");
+        chk_coarseToFine.setToolTipText("Before aligning, match the corner points of each image to the ones of the first image on its resolution levels, from the smallest to the biggest below full resolution.");
+        chk_coarseToFine.setSelected(false);
+        chk_coarseToFine.setEnabled(false);
+
+        cmb_transformationModel = new JComboBox<>(TransformationModel.values());
+        cmb_transformationModel.setToolTipText("Moving least squares deforms each region of the images according to its nearest corner points. The other models apply a single transformation to the whole image, and are much faster.");
+        cmb_transformationModel.setSelectedItem(TransformationModel.MOVING_LEAST_SQUARES);
+        cmb_transformationModel.setEnabled(false);
+
         // Remove the canvas from the windlow, to add it later
         removeAll();
 
@@ -127,6 +158,23 @@ public class MainDialog extends ImageWindow {
         btn_copyCorners.setText("COPY CORNERS");
         btn_copyCorners.setEnabled(false);
         cornersJPanel.add(btn_copyCorners, trainingConstraints);
+        trainingConstraints.gridy++;
+        btn_autoCorners = new JButton();
+        btn_autoCorners.setText("AUTO CORNERS");
+        btn_autoCorners.setToolTipText("Find matching corner points on all the images automatically, replacing the existing ones.");
+        btn_autoCorners.setEnabled(false);
+        cornersJPanel.add(btn_autoCorners, trainingConstraints);
+        trainingConstraints.gridy++;
+        btn_refineCorners = new JButton();
+        btn_refineCorners.setText("REFINE CORNERS");
+        btn_refineCorners.setToolTipText("Move the corner points of all the images onto the matching ones of the first image, at full resolution.");
+        btn_refineCorners.setEnabled(false);
+        cornersJPanel.add(btn_refineCorners, trainingConstraints);
+        trainingConstraints.gridy++;
+        chk_propagateCorners = new JCheckBox("Propagate corners");
+        chk_propagateCorners.setToolTipText("Place the corner points of the next image by matching the ones of the current image. The ones that can't be matched are only copied, and marked with \"" + ImagesManager.COPIED_LANDMARK_NAME + "\".");
+        chk_propagateCorners.setSelected(LandmarkPropagator.isEnabled());
+        cornersJPanel.add(chk_propagateCorners, trainingConstraints);
         cornersJPanel.setLayout(trainingLayout);
 
         // Options panel
@@ -162,8 +210,12 @@ public class MainDialog extends ImageWindow {
         alignConstraints.insets = new Insets(5, 5, 6, 6);
         alignJPanel.setLayout(alignLayout);
 
+        alignJPanel.add(cmb_transformationModel, actionsConstraints);
         alignJPanel.add(chk_rotateImages, actionsConstraints);
         alignJPanel.add(chk_keepOriginal, actionsConstraints);
+        alignJPanel.add(chk_pyramidalOutput, actionsConstraints);
+        alignJPanel.add(chk_keepPixelType, actionsConstraints);
+        alignJPanel.add(chk_coarseToFine, actionsConstraints);
         alignJPanel.add(btn_alignImages, actionsConstraints);
         alignJPanel.setLayout(alignLayout);
 
@@ -217,6 +269,9 @@ public class MainDialog extends ImageWindow {
         btn_copyCorners.addActionListener(e-> {
              this.eventListener.onMainDialogEvent(new CopyCornersEvent());
         });
+        btn_autoCorners.addActionListener(e -> this.eventListener.onMainDialogEvent(new AutoCornersEvent()));
+        btn_refineCorners.addActionListener(e -> this.eventListener.onMainDialogEvent(new RefineCornersEvent()));
+        chk_propagateCorners.addItemListener(e -> this.eventListener.onMainDialogEvent(new PropagateCornersEvent(chk_propagateCorners.isSelected())));
         chk_showPreview.addItemListener(e -> this.eventListener.onMainDialogEvent(new PreviewImageEvent(chk_showPreview.isSelected())));
         btn_deleteRoi.addActionListener(e -> {
             int index = lst_rois.getSelectedIndex();
@@ -225,7 +280,9 @@ public class MainDialog extends ImageWindow {
         });
         btn_prevImage.addActionListener(e -> this.eventListener.onMainDialogEvent(new ChangeImageEvent(ChangeImageEvent.ChangeDirection.PREV)));
         btn_nextImage.addActionListener(e -> this.eventListener.onMainDialogEvent(new ChangeImageEvent(ChangeImageEvent.ChangeDirection.NEXT)));
-        btn_alignImages.addActionListener(e -> this.eventListener.onMainDialogEvent(new AlignEvent(chk_rotateImages.isSelected(), chk_keepOriginal.isSelected())));
+        // the rotation option only applies to moving least squares, the global models already include it (or not) by definition
+        cmb_transformationModel.addActionListener(e -> chk_rotateImages.setEnabled(cmb_transformationModel.isEnabled() && !((TransformationModel)cmb_transformationModel.getSelectedItem()).isGlobal()));
+        btn_alignImages.addActionListener(e -> this.eventListener.onMainDialogEvent(new AlignEvent(chk_rotateImages.isSelected(), chk_keepOriginal.isSelected(), chk_pyramidalOutput.isSelected(), chk_keepPixelType.isSelected(), chk_coarseToFine.isSelected(), (TransformationModel)cmb_transformationModel.getSelectedItem())));
 
         // Markers addition handlers
         KeyboardFocusManager manager = KeyboardFocusManager.getCurrentKeyboardFocusManager();
@@ -352,6 +409,13 @@ public class MainDialog extends ImageWindow {
         this.pack();
     }
 
+    @Override
+    public void dispose() {
+        if (getCanvas() instanceof CustomCanvas)
+            ((CustomCanvas)getCanvas()).dispose();
+        super.dispose();
+    }
+
     /**
      * Adds an event listener to the current image
      */
@@ -398,7 +462,8 @@ public class MainDialog extends ImageWindow {
         lst_rois_model.removeAllElements();
         int idx = 0;
         for (Roi roi : manager.getRoisAsArray())
-            lst_rois_model.add(idx++, MessageFormat.format("{0} - {1},{2}", idx, (int)roi.getXBase() + (int)(roi.getFloatWidth() / 2), (int)roi.getYBase() + (int)(roi.getFloatHeight() / 2)));
+            lst_rois_model.add(idx++, MessageFormat.format("{0} - {1},{2}{3}", idx, (int)roi.getXBase() + (int)(roi.getFloatWidth() / 2), (int)roi.getYBase() + (int)(roi.getFloatHeight() / 2),
+                    ImagesManager.COPIED_LANDMARK_NAME.equals(roi.getName()) ? " (copied)" : ""));
     }
 
     public void setPreviewWindowCheckBox(boolean value) {
@@ -415,14 +480,26 @@ public class MainDialog extends ImageWindow {
 
     public void setAlignButtonEnabled(boolean enabled) {
         this.btn_alignImages.setEnabled(enabled);
-        this.chk_rotateImages.setEnabled(enabled);
+        this.chk_rotateImages.setEnabled(enabled && !((TransformationModel)cmb_transformationModel.getSelectedItem()).isGlobal());
+        this.cmb_transformationModel.setEnabled(enabled);
         this.chk_keepOriginal.setEnabled(enabled);
+        this.chk_pyramidalOutput.setEnabled(enabled);
+        this.chk_keepPixelType.setEnabled(enabled);
+        this.chk_coarseToFine.setEnabled(enabled);
     }
 
     public void setCopyCornersEnabled(boolean enabled) {
         this.btn_copyCorners.setEnabled(enabled);
     }
 
+    public void setAutoCornersEnabled(boolean enabled) {
+        this.btn_autoCorners.setEnabled(enabled);
+    }
+
+    public void setRefineCornersEnabled(boolean enabled) {
+        this.btn_refineCorners.setEnabled(enabled);
+    }
+
     public void setListSelectedIndex(int index) {
         this.lst_rois.setSelectedIndex(index);
     }
@@ -433,7 +510,10 @@ public class MainDialog extends ImageWindow {
         @Override
         public boolean dispatchKeyEvent(KeyEvent e) {
             if (e.getID() == KeyEvent.KEY_RELEASED && e.getKeyCode() == KeyEvent.VK_C && mouseOverCanvas) {
-                Point clickCoords = getCanvas().getCursorLoc();
+                Point2D clickCoords = getCanvas().getCursorLoc();
+                Point mousePosition = getCanvas().getMousePosition();
+                if (mousePosition != null)
+                    clickCoords = new Point2D.Double(getCanvas().offScreenXD(mousePosition.x), getCanvas().offScreenYD(mousePosition.y));
                 eventListener.onMainDialogEvent(new AddRoiEvent(clickCoords));
             }
             if(debounce == false && e.getID() == KeyEvent.KEY_RELEASED && (e.getKeyCode() == KeyEvent.VK_A || e.getKeyCode() == KeyEvent.VK_D)) {
@@ -0,0 +1,176 @@
+package DS4H.MainDialog;
+
+import DS4H.ImageFile;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Draws the visible part of an image from one of its resolution levels, decoding only the tiles that are on screen.
+ * Tiles are decoded in the background and drawn as soon as they are ready, so the view fills in progressively while the
+ * user pans and zooms, over whatever was already drawn below. Decoded tiles are kept in a cache, the least recently
+ * used ones being evicted first, and the tiles that go out of view before being decoded are not decoded at all.
+ * All the renderers decode their tiles on the same few threads, which stop when there is nothing left to decode.
+ */
+public class ViewportRenderer {
+    public static final int TILE_SIZE = 512;
+    // part of the heap that the decoded tiles can use
+    private static final double CACHE_HEAP_FRACTION = 0.05;
+    // seconds an idle decoding thread is kept alive
+    private static final long THREAD_KEEP_ALIVE = 30;
+    private static final ExecutorService EXECUTOR = createExecutor();
+
+    private final Component target;
+    private final Map<TileKey, BufferedImage> tiles = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<TileKey, Future<?>> pending = new HashMap<>();
+    private final long budget;
+    private long memoryUsage = 0;
+
+    private static class TileKey {
+        private final ImageFile imageFile;
+        private final int index;
+        private final int level;
+        private final int tileX;
+        private final int tileY;
+
+        private TileKey(ImageFile imageFile, int index, int level, int tileX, int tileY) {
+            this.imageFile = imageFile;
+            this.index = index;
+            this.level = level;
+            this.tileX = tileX;
+            this.tileY = tileY;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof TileKey))
+                return false;
+            TileKey key = (TileKey)o;
+            return imageFile == key.imageFile && index == key.index && level == key.level && tileX == key.tileX && tileY == key.tileY;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(imageFile), index, level, tileX, tileY);
+        }
+    }
+
+    /**
+     * @param target the component that is repainted every time a new tile is ready
+     */
+    public ViewportRenderer(Component target) {
+        this.target = target;
+        this.budget = (long)(Runtime.getRuntime().maxMemory() * CACHE_HEAP_FRACTION);
+    }
+
+    private static ExecutorService createExecutor() {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, THREAD_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "DS4H-viewport-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Draws the tiles of the given level that cover the given region (in level coordinates), using the given transform
+     * from level coordinates to screen coordinates. Tiles not decoded yet are requested, and are drawn by a later repaint.
+     */
+    public synchronized void draw(Graphics2D g, ImageFile imageFile, int index, int level, Dimension levelDimension, Rectangle region, AffineTransform levelToScreen) {
+        Set<TileKey> visible = new HashSet<>();
+        for (int tileY = region.y / TILE_SIZE; tileY * TILE_SIZE < region.y + region.height; tileY++) {
+            for (int tileX = region.x / TILE_SIZE; tileX * TILE_SIZE < region.x + region.width; tileX++) {
+                TileKey key = new TileKey(imageFile, index, level, tileX, tileY);
+                visible.add(key);
+                BufferedImage tile = tiles.get(key);
+                if (tile == null) {
+                    request(key, levelDimension);
+                    continue;
+                }
+                AffineTransform transform = new AffineTransform(levelToScreen);
+                transform.translate(tileX * TILE_SIZE, tileY * TILE_SIZE);
+                g.drawImage(tile, transform, null);
+            }
+        }
+
+        // the tiles that are not visible anymore are not worth decoding
+        Iterator<Map.Entry<TileKey, Future<?>>> requests = pending.entrySet().iterator();
+        while (requests.hasNext()) {
+            Map.Entry<TileKey, Future<?>> request = requests.next();
+            if (!visible.contains(request.getKey())) {
+                request.getValue().cancel(false);
+                requests.remove();
+            }
+        }
+    }
+
+    private void request(TileKey key, Dimension levelDimension) {
+        if (pending.containsKey(key))
+            return;
+        Rectangle bounds = new Rectangle(key.tileX * TILE_SIZE, key.tileY * TILE_SIZE, TILE_SIZE, TILE_SIZE).intersection(new Rectangle(levelDimension));
+        if (bounds.isEmpty())
+            return;
+        pending.put(key, EXECUTOR.submit(() -> {
+            try {
+                BufferedImage tile = key.imageFile.openLevelRegion(key.index, key.level, bounds);
+                synchronized (this) {
+                    pending.remove(key);
+                    put(key, tile);
+                }
+                target.repaint();
+            } catch (Exception e) {
+                e.printStackTrace();
+                synchronized (this) {
+                    pending.remove(key);
+                }
+            }
+        }));
+    }
+
+    private void put(TileKey key, BufferedImage tile) {
+        BufferedImage previous = tiles.put(key, tile);
+        if (previous != null)
+            memoryUsage -= getSize(previous);
+        memoryUsage += getSize(tile);
+        Iterator<BufferedImage> eldest = tiles.values().iterator();
+        while (memoryUsage > budget && eldest.hasNext()) {
+            memoryUsage -= getSize(eldest.next());
+            eldest.remove();
+        }
+    }
+
+    private static long getSize(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long)buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    /**
+     * Drops all the decoded tiles and the tiles waiting to be decoded
+     */
+    public synchronized void dispose() {
+        pending.values().forEach(request -> request.cancel(false));
+        pending.clear();
+        tiles.clear();
+        memoryUsage = 0;
+    }
+}
@@ -1,14 +1,18 @@
 package DS4H.MainDialog.event;
 
-import java.awt.*;
+import java.awt.geom.Point2D;
 
 public class AddRoiEvent implements IMainDialogEvent {
-    private Point coords;
-    public AddRoiEvent(Point coords) {
+    private Point2D coords;
+    public AddRoiEvent(Point2D coords) {
         this.coords = coords;
     }
 
-    public Point getClickCoords() {
+    /**
+     * Returns the coordinates of the click on the editor image. They are not rounded, since when the image is zoomed in
+     * each pixel of it covers several screen pixels.
+     */
+    public Point2D getClickCoords() {
         return this.coords;
     }
 }
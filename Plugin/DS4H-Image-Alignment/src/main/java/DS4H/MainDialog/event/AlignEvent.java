@@ -1,13 +1,23 @@
 package DS4H.MainDialog.event;
 
+import DS4H.TransformationModel;
+
 public class AlignEvent implements IMainDialogEvent {
     private boolean rotate;
     private boolean keepOriginal;
+    private boolean pyramidal;
+    private boolean keepPixelType;
+    private boolean coarseToFine;
+    private TransformationModel model;
 
-    public AlignEvent(boolean rotate, boolean keepOriginal) {
+    public AlignEvent(boolean rotate, boolean keepOriginal, boolean pyramidal, boolean keepPixelType, boolean coarseToFine, TransformationModel model) {
 
         this.rotate = rotate;
         this.keepOriginal = keepOriginal;
+        this.pyramidal = pyramidal;
+        this.keepPixelType = keepPixelType;
+        this.coarseToFine = coarseToFine;
+        this.model = model;
     }
 
     public boolean isRotate() {
@@ -16,4 +26,16 @@ public class AlignEvent implements IMainDialogEvent {
     public boolean isKeepOriginal() {
         return keepOriginal;
     }
+    public boolean isPyramidal() {
+        return pyramidal;
+    }
+    public boolean isKeepPixelType() {
+        return keepPixelType;
+    }
+    public boolean isCoarseToFine() {
+        return coarseToFine;
+    }
+    public TransformationModel getModel() {
+        return model;
+    }
 }
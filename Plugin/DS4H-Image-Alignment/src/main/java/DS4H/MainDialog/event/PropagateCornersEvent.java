@@ -0,0 +1,12 @@
+package DS4H.MainDialog.event;
+
+public class PropagateCornersEvent implements IMainDialogEvent {
+    private boolean enabled;
+    public PropagateCornersEvent(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean getValue() {
+        return enabled;
+    }
+}
@@ -0,0 +1,4 @@
+package DS4H.MainDialog.event;
+
+public class RefineCornersEvent implements IMainDialogEvent {
+}
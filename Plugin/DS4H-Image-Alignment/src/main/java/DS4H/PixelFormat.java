@@ -0,0 +1,116 @@
+package DS4H;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import loci.formats.FormatTools;
+
+import java.util.Objects;
+
+/**
+ * The type of the pixels of the aligned images: either 8-bit RGB, held by a single ColorProcessor, or the type of the
+ * source files (8, 16 or 32-bit samples) with any number of channels, each one held and warped by its own processor.
+ */
+public class PixelFormat {
+    public static final PixelFormat RGB = new PixelFormat(24, 3);
+
+    // the ImageJ bit depth of each channel: 8, 16, 32, or 24 for packed RGB
+    private final int bitDepth;
+    private final int channels;
+
+    public PixelFormat(int bitDepth, int channels) {
+        this.bitDepth = bitDepth;
+        this.channels = channels;
+    }
+
+    /**
+     * Returns the format ImageJ can hold the given Bio-Formats pixel type in without converting it, or null if there is none
+     */
+    public static PixelFormat fromPixelType(int pixelType, int channels) {
+        switch (pixelType) {
+            case FormatTools.UINT8:
+                return channels == 3 ? RGB : new PixelFormat(8, channels);
+            case FormatTools.UINT16:
+                return new PixelFormat(16, channels);
+            case FormatTools.FLOAT:
+                return new PixelFormat(32, channels);
+            default:
+                return null;
+        }
+    }
+
+    public boolean isRGB() {
+        return bitDepth == 24;
+    }
+
+    public int getBitDepth() {
+        return bitDepth;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * Returns how many ImageJ processors (and stack slices) hold each image: one for RGB, one for each channel otherwise
+     */
+    public int getSlicesPerImage() {
+        return isRGB() ? 1 : channels;
+    }
+
+    /**
+     * Returns the Bio-Formats type of each sample written to file
+     */
+    public int getPixelType() {
+        return bitDepth == 16 ? FormatTools.UINT16 : bitDepth == 32 ? FormatTools.FLOAT : FormatTools.UINT8;
+    }
+
+    public int getBytesPerSample() {
+        return isRGB() ? 1 : bitDepth / 8;
+    }
+
+    /**
+     * Returns the memory taken by a pixel (all of its channels) in ImageJ processors
+     */
+    public int getBytesPerPixel() {
+        return isRGB() ? Integer.BYTES : bitDepth / 8 * channels;
+    }
+
+    /**
+     * Returns a new empty processor for a single slice of an image of this format
+     */
+    public ImageProcessor createProcessor(int width, int height) {
+        switch (bitDepth) {
+            case 8:
+                return new ByteProcessor(width, height);
+            case 16:
+                return new ShortProcessor(width, height);
+            case 32:
+                return new FloatProcessor(width, height);
+            default:
+                return new ColorProcessor(width, height);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof PixelFormat))
+            return false;
+        PixelFormat format = (PixelFormat)o;
+        return bitDepth == format.bitDepth && channels == format.channels;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(bitDepth, channels);
+    }
+
+    @Override
+    public String toString() {
+        return isRGB() ? "RGB" : bitDepth + "-bit, " + channels + (channels == 1 ? " channel" : " channels");
+    }
+}
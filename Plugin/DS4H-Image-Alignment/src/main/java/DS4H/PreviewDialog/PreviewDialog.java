@@ -100,6 +100,13 @@ public class PreviewDialog extends ImageWindow {
         this.pack();
     }
 
+    @Override
+    public void dispose() {
+        if (getCanvas() instanceof CustomCanvas)
+            ((CustomCanvas)getCanvas()).dispose();
+        super.dispose();
+    }
+
     public void drawRois() {
         Overlay over = new Overlay();
         over.drawBackgrounds(false);
@@ -0,0 +1,126 @@
+package DS4H;
+
+import loci.formats.FormatException;
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+import loci.formats.gui.BufferedImageReader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A pool of Bio-Formats readers opened on the same resolution level of the first series of a file.
+ * Readers are not thread-safe, so each one of them is handed to a single thread at a time. New readers are opened only
+ * when all the existing ones are busy, up to a maximum; after that, threads wait for a reader to be released.
+ */
+public class ReaderPool implements Closeable {
+    private final String path;
+    private final int resolution;
+    private final int maxReaders;
+    private final Deque<BufferedImageReader> idle = new ArrayDeque<>();
+    private int opened = 0;
+    private boolean closed = false;
+
+    public interface ReaderTask<T> {
+        T read(BufferedImageReader reader) throws IOException, FormatException;
+    }
+
+    public ReaderPool(String path, int resolution, int maxReaders) {
+        this.path = path;
+        this.resolution = resolution;
+        this.maxReaders = Math.max(1, maxReaders);
+    }
+
+    /**
+     * @param reader an already opened reader on the same file and level, which becomes the first reader of the pool
+     */
+    public ReaderPool(String path, int resolution, int maxReaders, BufferedImageReader reader) {
+        this(path, resolution, maxReaders);
+        this.idle.push(reader);
+        this.opened = 1;
+    }
+
+    /**
+     * Runs the given task with a reader that no other thread is using
+     */
+    public <T> T read(ReaderTask<T> task) throws IOException, FormatException {
+        BufferedImageReader reader = acquire();
+        try {
+            return task.read(reader);
+        }
+        finally {
+            release(reader);
+        }
+    }
+
+    private BufferedImageReader acquire() throws IOException, FormatException {
+        synchronized (this) {
+            while (!closed && idle.isEmpty() && opened >= maxReaders) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a reader of " + path);
+                }
+            }
+            if (closed)
+                throw new IOException("The file " + path + " has been closed");
+            if (!idle.isEmpty())
+                return idle.pop();
+            opened++;
+        }
+
+        // opening a file can take a while: other threads can keep on using the pool in the meantime
+        try {
+            return open();
+        } catch (IOException | FormatException | RuntimeException e) {
+            synchronized (this) {
+                opened--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    private BufferedImageReader open() throws IOException, FormatException {
+        IFormatReader reader = new ImageReader(ImageReader.getDefaultReaderClasses());
+        reader.setFlattenedResolutions(false);
+        reader.setId(path);
+        reader.setResolution(resolution);
+        return BufferedImageReader.makeBufferedImageReader(reader);
+    }
+
+    private synchronized void release(BufferedImageReader reader) {
+        if (closed)
+            closeReader(reader);
+        else
+            idle.push(reader);
+        notifyAll();
+    }
+
+    public synchronized int getOpenedReaders() {
+        return opened;
+    }
+
+    /**
+     * Closes the idle readers right away, and the busy ones as soon as they are released
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        idle.forEach(ReaderPool::closeReader);
+        idle.clear();
+        notifyAll();
+    }
+
+    private static void closeReader(BufferedImageReader reader) {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
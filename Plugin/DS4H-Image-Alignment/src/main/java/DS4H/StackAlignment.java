@@ -0,0 +1,173 @@
+package DS4H;
+
+import DS4H.BufferedImage.BufferedImage;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.awt.*;
+import java.awt.image.ColorModel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Aligns all the images of the stack onto the first one at full resolution, without any user interface. Each aligned
+ * image is written to an OME-TIFF file as soon as it is ready, and kept compressed in a stack to be shown, unless
+ * nothing is going to show it.
+ * Used by the editor when the boundaries of the original images don't have to be kept, and by headless alignments.
+ */
+public class StackAlignment {
+    // the aligned images are always interpolated, as the editor does
+    private static final boolean INTERPOLATE = true;
+    private final ImagesManager manager;
+    private final boolean rotate;
+    private final TransformationModel model;
+    private final PixelFormat format;
+    private final boolean pyramidal;
+
+    /**
+     * @param format the format of the aligned images, either RGB or the one returned by ImagesManager.getPixelFormat
+     * @param pyramidal whether the lower resolution levels are written along with the aligned images
+     */
+    public StackAlignment(ImagesManager manager, boolean rotate, TransformationModel model, PixelFormat format, boolean pyramidal) {
+        this.manager = manager;
+        this.rotate = rotate;
+        this.model = model;
+        this.format = format;
+        this.pyramidal = pyramidal;
+    }
+
+    /**
+     * Returns true if the images exceed the maximum image size supported by ImageJ, or their slices could not be held
+     * compressed by a CompressedImageStack: they can only be aligned tile by tile
+     */
+    public boolean isOversize() {
+        int bytesPerPixel = format.getBytesPerPixel() / format.getSlicesPerImage();
+        return manager.getImageFiles().stream().map(ImageFile::getWholeSlideDimension)
+                .anyMatch(dimension -> (double)dimension.width * dimension.height > Integer.MAX_VALUE ||
+                        !CompressedImageStack.fits((long)dimension.width * dimension.height, bytesPerPixel));
+    }
+
+    /**
+     * Aligns the images, writing them to the given path, and returns them as a stack with a slice for each channel of each image.
+     * Images that have already been aligned in the same way are taken from the WarpedSliceCache, if enabled, without reading them again.
+     */
+    public CompressedImageStack align(String path) throws Exception {
+        Dimension dimension = manager.getImageFile(0).getWholeSlideDimension();
+        CompressedImageStack stack = new CompressedImageStack(dimension.width, dimension.height, format.isRGB() ? ColorModel.getRGBdefault() : null);
+        try {
+            align(path, stack);
+        }
+        catch (Exception e) {
+            stack.dispose();
+            throw e;
+        }
+        return stack;
+    }
+
+    /**
+     * Like align, but only writes the aligned images to the given path, without compressing them for a stack
+     */
+    public void write(String path) throws Exception {
+        align(path, null);
+    }
+
+    private void align(String path, CompressedImageStack stack) throws Exception {
+        final WarpedSliceCache cache = WarpedSliceCache.getDefault();
+        final Dimension dimension = manager.getImageFile(0).getWholeSlideDimension();
+        final int width = dimension.width;
+        final int height = dimension.height;
+        final int[] pyramidFactors = pyramidal ? AlignedImageWriter.getPyramidFactors(width, height) : new int[0];
+        // the slices are compressed only if there is a stack or a cache to keep them
+        final boolean compress = stack != null || cache != null;
+        // the first image is read only when some image has to be aligned onto it, or when it is not cached itself
+        final BufferedImage[] template = {null};
+        try (AlignedImageWriter writer = new AlignedImageWriter(path, width, height, manager.getNImages(), manager.getImageFile(0).getMetadata(), pyramidFactors, format)) {
+            AlignedSlice first = getSlice(cache, cache == null ? null : WarpedSliceCache.getKey(manager, 0, format), width, height, compress,
+                    () -> getChannels(getTemplate(template)));
+            writer.writePlane(first.channels);
+            if (stack != null)
+                for (CompressedImageStack.Slice compressed : first.compressed)
+                    stack.addSlice(compressed);
+
+            List<Integer> indexes = new ArrayList<>();
+            for (int i = 1; i < manager.getNImages(); i++)
+                indexes.add(i);
+            Dimension maximumSize = manager.getMaximumSize();
+            long sliceBytes = AlignmentEngine.estimateSliceBytes((long)maximumSize.width * maximumSize.height, (long)width * height, format.getBytesPerPixel());
+            new AlignmentEngine(sliceBytes).run(indexes,
+                    // slices are compressed by the worker threads as well, the stack only has to store them
+                    i -> getSlice(cache, cache == null ? null : WarpedSliceCache.getKey(manager, i, 0, rotate, model, INTERPOLATE, format), width, height, compress, () -> {
+                        ImagePlus transformed = LeastSquareImageTransformation.transform(manager.get(i, format), getTemplate(template), rotate, model, INTERPOLATE);
+                        if (transformed == null)
+                            throw new IllegalArgumentException("The landmarks of image " + (i + 1) + " do not define a transformation");
+                        return getChannels(transformed);
+                    }),
+                    (i, slice) -> {
+                        writer.writePlane(slice.channels);
+                        if (stack != null)
+                            for (CompressedImageStack.Slice compressed : slice.compressed)
+                                stack.addSlice(compressed);
+                    });
+        }
+    }
+
+    private BufferedImage getTemplate(BufferedImage[] template) {
+        synchronized (template) {
+            if (template[0] == null)
+                template[0] = manager.get(0, format);
+            return template[0];
+        }
+    }
+
+    private interface ChannelsTask {
+        ImageProcessor[] compute() throws Exception;
+    }
+
+    /**
+     * Returns the image with the given key from the cache, or computes its channels and caches them. Computed channels
+     * are only compressed if asked to.
+     */
+    private AlignedSlice getSlice(WarpedSliceCache cache, String key, int width, int height, boolean compress, ChannelsTask task) throws Exception {
+        CompressedImageStack.Slice[] compressed = cache == null ? null : cache.get(key);
+        if (compressed != null) {
+            ImageProcessor[] channels = new ImageProcessor[compressed.length];
+            for (int c = 0; c < channels.length; c++)
+                channels[c] = CompressedImageStack.decompress(compressed[c], width, height);
+            return new AlignedSlice(channels, compressed);
+        }
+        ImageProcessor[] channels = task.compute();
+        if (!compress)
+            return new AlignedSlice(channels, null);
+        compressed = new CompressedImageStack.Slice[channels.length];
+        for (int c = 0; c < channels.length; c++)
+            compressed[c] = CompressedImageStack.compress("", format.isRGB() ? channels[c].convertToRGB() : channels[c]);
+        if (cache != null)
+            cache.put(key, compressed);
+        return new AlignedSlice(channels, compressed);
+    }
+
+    /**
+     * Returns the processors of the slices of the given image, that is one for each of its channels
+     */
+    public static ImageProcessor[] getChannels(ImagePlus image) {
+        ImageStack stack = image.getStack();
+        ImageProcessor[] channels = new ImageProcessor[stack.getSize()];
+        for (int i = 0; i < channels.length; i++)
+            channels[i] = stack.getProcessor(i + 1);
+        return channels;
+    }
+
+    /**
+     * An aligned image, both as it is written to file and compressed for the stack (if it has been compressed)
+     */
+    private static class AlignedSlice {
+        private final ImageProcessor[] channels;
+        private final CompressedImageStack.Slice[] compressed;
+
+        private AlignedSlice(ImageProcessor[] channels, CompressedImageStack.Slice[] compressed) {
+            this.channels = channels;
+            this.compressed = compressed;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package DS4H;
+
+import ij.process.ImageProcessor;
+import mpicbg.models.AbstractAffineModel2D;
+import mpicbg.models.CoordinateTransform;
+import mpicbg.models.CoordinateTransformList;
+import mpicbg.models.CoordinateTransformMesh;
+import mpicbg.models.Point;
+import mpicbg.models.TranslationModel2D;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Aligns the images of the stack at full resolution one tile at a time, so that the output is not limited by the maximum
+ * image size supported by ImageJ. Each output tile is computed from the matching region of the source image only, which
+ * is read through Bio-Formats, and is streamed to an AlignedImageWriter as soon as it is ready. Tiles are either RGB or
+ * in the pixel type of the source files, with each channel warped on its own.
+ */
+public class TiledImageTransformation {
+    // distance (in source pixels) between the points used to find out which source region ends up in each tile
+    private static final int GRID_STEP = 64;
+    // extra pixels read around each source region, needed by the bicubic interpolation
+    private static final int SOURCE_MARGIN = 4;
+    private static final int MESH_RESOLUTION = 32;
+
+    private final ImagesManager manager;
+    private final int referenceIndex;
+    private final boolean rotate;
+    private final TransformationModel model;
+    private final PixelFormat format;
+
+    public TiledImageTransformation(ImagesManager manager, int referenceIndex, boolean rotate, TransformationModel model) {
+        this(manager, referenceIndex, rotate, model, PixelFormat.RGB);
+    }
+
+    /**
+     * @param format the format of the aligned tiles: RGB, or the one shared by all the files (as returned by ImagesManager.getPixelFormat)
+     */
+    public TiledImageTransformation(ImagesManager manager, int referenceIndex, boolean rotate, TransformationModel model, PixelFormat format) {
+        this.manager = manager;
+        this.referenceIndex = referenceIndex;
+        this.rotate = rotate;
+        this.model = model;
+        this.format = format;
+    }
+
+    /**
+     * Returns the dimension of the aligned images, that is the full resolution dimension of the reference image
+     */
+    public Dimension getTargetDimension() {
+        return manager.getImageFile(referenceIndex).getWholeSlideDimension();
+    }
+
+    /**
+     * Warps every image of the stack onto the reference one, writing each of them as a plane of the given writer
+     */
+    public void transform(AlignedImageWriter writer) throws Exception {
+        for (int i = 0; i < manager.getNImages(); i++)
+            transform(i, i, writer);
+    }
+
+    private void transform(int index, int plane, AlignedImageWriter writer) throws Exception {
+        final ImageFile imageFile = manager.getImageFile(index);
+        final int localIndex = manager.getLocalIndex(index);
+        final Dimension sourceDimension = imageFile.getWholeSlideDimension();
+        final int tileSize = writer.getTileSize();
+        final int tilesX = (writer.getWidth() + tileSize - 1) / tileSize;
+        final int tilesY = (writer.getHeight() + tileSize - 1) / tileSize;
+
+        final List<Rectangle> tiles = new ArrayList<>();
+        for (int y = 0; y < tilesY; y++)
+            for (int x = 0; x < tilesX; x++)
+                tiles.add(new Rectangle(x * tileSize, y * tileSize, Math.min(tileSize, writer.getWidth() - x * tileSize), Math.min(tileSize, writer.getHeight() - y * tileSize)));
+
+        final List<Point> sourcePoints;
+        final List<Point> templatePoints;
+        final AbstractAffineModel2D<?> globalModel;
+        final Rectangle[] sourceRegions;
+        if (index == referenceIndex) {
+            // the reference image is just copied: each tile comes from the very same region of the source
+            sourcePoints = null;
+            templatePoints = null;
+            globalModel = null;
+            sourceRegions = tiles.stream().map(tile -> tile.intersection(new Rectangle(sourceDimension))).toArray(Rectangle[]::new);
+        }
+        else {
+            sourcePoints = getPoints(index);
+            templatePoints = getPoints(referenceIndex);
+            globalModel = model.isGlobal() ? LeastSquareImageTransformation.fitGlobal(sourcePoints, templatePoints, model) : null;
+            CoordinateTransform transform = globalModel != null ? globalModel : LeastSquareImageTransformation.fit(sourcePoints, templatePoints, rotate);
+            sourceRegions = findSourceRegions(transform, sourceDimension, tilesX, tilesY, tileSize);
+        }
+
+        List<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < tiles.size(); i++)
+            indexes.add(i);
+        // a source region is usually about the size of its tile, but leave some room for scaling
+        long tilePixels = (long)tileSize * tileSize;
+        new AlignmentEngine(AlignmentEngine.estimateSliceBytes(tilePixels * 4, tilePixels, format.getBytesPerPixel())).run(indexes,
+                i -> computeTile(imageFile, localIndex, tiles.get(i), sourceRegions[i], sourcePoints, templatePoints, globalModel),
+                (i, tile) -> writer.writeTile(plane, tile, tiles.get(i).x, tiles.get(i).y));
+    }
+
+    private List<Point> getPoints(int index) {
+        ImageFile imageFile = manager.getImageFile(index);
+        return LeastSquareImageTransformation.getPoints(manager.getLandmarks().get(index), imageFile.getWholeSlideDimension(), imageFile.getEditorImageDimension());
+    }
+
+    /**
+     * Computes the given tile of the aligned image, one processor for each channel
+     */
+    private ImageProcessor[] computeTile(ImageFile imageFile, int localIndex, Rectangle tile, Rectangle region, List<Point> sourcePoints, List<Point> templatePoints, AbstractAffineModel2D<?> globalModel) throws Exception {
+        ImageProcessor[] targets = new ImageProcessor[format.getSlicesPerImage()];
+        for (int c = 0; c < targets.length; c++)
+            targets[c] = format.createProcessor(tile.width, tile.height);
+        if (region == null || region.isEmpty())
+            return targets;
+
+        ImageProcessor[] sources = format.isRGB() ? new ImageProcessor[]{imageFile.openRegion(localIndex, region)} : imageFile.openProcessors(localIndex, region);
+        if (sourcePoints == null) {
+            for (int c = 0; c < targets.length; c++)
+                targets[c].insert(sources[c], region.x - tile.x, region.y - tile.y);
+            return targets;
+        }
+
+        if (globalModel != null) {
+            // region coordinates -> source image coordinates -> reference image coordinates -> tile coordinates, as a single affine transformation
+            AffineTransform transform = AffineTransform.getTranslateInstance(-tile.x, -tile.y);
+            transform.concatenate(globalModel.createAffine());
+            transform.translate(region.x, region.y);
+            for (int c = 0; c < targets.length; c++) {
+                sources[c].setInterpolationMethod(ImageProcessor.BICUBIC);
+                AffineWarp.warp(sources[c], targets[c], transform, true);
+            }
+            return targets;
+        }
+
+        // region coordinates -> source image coordinates -> reference image coordinates -> tile coordinates.
+        // The transform is fitted again for each tile because MovingLeastSquaresTransform is not thread-safe
+        TranslationModel2D toImage = new TranslationModel2D();
+        toImage.set(region.x, region.y);
+        TranslationModel2D toTile = new TranslationModel2D();
+        toTile.set(-tile.x, -tile.y);
+        CoordinateTransformList<CoordinateTransform> transform = new CoordinateTransformList<>();
+        transform.add(toImage);
+        transform.add(LeastSquareImageTransformation.fit(sourcePoints, templatePoints, rotate));
+        transform.add(toTile);
+
+        CoordinateTransformMesh mesh = new CoordinateTransformMesh(transform, MESH_RESOLUTION, region.width, region.height);
+        for (int c = 0; c < targets.length; c++) {
+            sources[c].setInterpolationMethod(ImageProcessor.BICUBIC);
+            LeastSquareImageTransformation.mapInterpolated(mesh, sources[c], targets[c]);
+        }
+        return targets;
+    }
+
+    /**
+     * Maps a regular grid of source points onto the reference image, and uses it to find the bounding box of the source
+     * pixels needed by each tile. Tiles that receive no pixel at all get a null region.
+     */
+    private static Rectangle[] findSourceRegions(CoordinateTransform transform, Dimension sourceDimension, int tilesX, int tilesY, int tileSize) {
+        int cols = (sourceDimension.width + GRID_STEP - 1) / GRID_STEP + 1;
+        int rows = (sourceDimension.height + GRID_STEP - 1) / GRID_STEP + 1;
+        double[][] mappedX = new double[rows][cols];
+        double[][] mappedY = new double[rows][cols];
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                double[] location = transform.apply(new double[]{Math.min(col * GRID_STEP, sourceDimension.width), Math.min(row * GRID_STEP, sourceDimension.height)});
+                mappedX[row][col] = location[0];
+                mappedY[row][col] = location[1];
+            }
+        }
+
+        Rectangle[] regions = new Rectangle[tilesX * tilesY];
+        for (int row = 0; row < rows - 1; row++) {
+            for (int col = 0; col < cols - 1; col++) {
+                double minX = Math.min(Math.min(mappedX[row][col], mappedX[row][col + 1]), Math.min(mappedX[row + 1][col], mappedX[row + 1][col + 1]));
+                double maxX = Math.max(Math.max(mappedX[row][col], mappedX[row][col + 1]), Math.max(mappedX[row + 1][col], mappedX[row + 1][col + 1]));
+                double minY = Math.min(Math.min(mappedY[row][col], mappedY[row][col + 1]), Math.min(mappedY[row + 1][col], mappedY[row + 1][col + 1]));
+                double maxY = Math.max(Math.max(mappedY[row][col], mappedY[row][col + 1]), Math.max(mappedY[row + 1][col], mappedY[row + 1][col + 1]));
+
+                // the transform is not linear inside a cell: widen its footprint a bit
+                int fromX = Math.max(0, (int)Math.floor((minX - GRID_STEP / 2.0) / tileSize));
+                int toX = Math.min(tilesX - 1, (int)Math.floor((maxX + GRID_STEP / 2.0) / tileSize));
+                int fromY = Math.max(0, (int)Math.floor((minY - GRID_STEP / 2.0) / tileSize));
+                int toY = Math.min(tilesY - 1, (int)Math.floor((maxY + GRID_STEP / 2.0) / tileSize));
+
+                int x = Math.min(col * GRID_STEP, sourceDimension.width);
+                int y = Math.min(row * GRID_STEP, sourceDimension.height);
+                Rectangle cell = new Rectangle(x, y, Math.min((col + 1) * GRID_STEP, sourceDimension.width) - x, Math.min((row + 1) * GRID_STEP, sourceDimension.height) - y);
+                for (int tileY = fromY; tileY <= toY; tileY++) {
+                    for (int tileX = fromX; tileX <= toX; tileX++) {
+                        int tile = tileY * tilesX + tileX;
+                        regions[tile] = regions[tile] == null ? new Rectangle(cell) : regions[tile].union(cell);
+                    }
+                }
+            }
+        }
+
+        Rectangle bounds = new Rectangle(sourceDimension);
+        for (int i = 0; i < regions.length; i++) {
+            if (regions[i] == null)
+                continue;
+            regions[i].grow(SOURCE_MARGIN, SOURCE_MARGIN);
+            regions[i] = regions[i].intersection(bounds);
+        }
+        return regions;
+    }
+}
@@ -0,0 +1,149 @@
+package DS4H;
+
+import mpicbg.models.CoordinateTransformMesh;
+import mpicbg.models.MovingLeastSquaresTransform;
+import mpicbg.models.Point;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Keeps the meshes of the most recently used transformations, so that aligning again after changing only a few
+ * landmarks fits again only the images whose landmarks have actually changed.
+ * A mesh is identified by the landmarks it was fitted on, the transformation model and the size of the image it covers.
+ * The cache is bounded by the estimated memory of its meshes rather than by their number, since the size of a mesh
+ * grows with the mesh resolution.
+ */
+public class TransformCache {
+    // share of the heap the meshes may take: a mesh costs little next to the slices it maps, but fine meshes are not free
+    private static final double MEMORY_FRACTION = 0.05;
+    // rough cost of a triangle of a mesh: its affine model, its three point matches and the map entries holding them
+    private static final long TRIANGLE_BYTES = 1024;
+
+    // access ordered, so that the least recently used meshes are the first to be evicted
+    private final LinkedHashMap<Key, CoordinateTransformMesh> meshes = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Key, Long> sizes = new HashMap<>();
+    private final long maxBytes;
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    public TransformCache() {
+        this((long)(Runtime.getRuntime().maxMemory() * MEMORY_FRACTION));
+    }
+
+    public TransformCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    private static class Key {
+        private final double[] sourcePoints;
+        private final double[] templatePoints;
+        private final Class<?> model;
+        private final int width;
+        private final int height;
+        private final int meshResolution;
+        private final int hashCode;
+
+        private Key(List<Point> sourcePoints, List<Point> templatePoints, Class<?> model, int width, int height, int meshResolution) {
+            this.sourcePoints = toArray(sourcePoints);
+            this.templatePoints = toArray(templatePoints);
+            this.model = model;
+            this.width = width;
+            this.height = height;
+            this.meshResolution = meshResolution;
+            this.hashCode = Objects.hash(Arrays.hashCode(this.sourcePoints), Arrays.hashCode(this.templatePoints), model, width, height, meshResolution);
+        }
+
+        private long getBytes() {
+            return (sourcePoints.length + templatePoints.length) * (long)Double.BYTES + 64;
+        }
+
+        private static double[] toArray(List<Point> points) {
+            double[] coordinates = new double[points.size() * 2];
+            for (int i = 0; i < points.size(); i++) {
+                coordinates[i * 2] = points.get(i).getL()[0];
+                coordinates[i * 2 + 1] = points.get(i).getL()[1];
+            }
+            return coordinates;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key key = (Key)o;
+            return width == key.width && height == key.height && meshResolution == key.meshResolution && model == key.model &&
+                    Arrays.equals(sourcePoints, key.sourcePoints) && Arrays.equals(templatePoints, key.templatePoints);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * Returns the mesh of the transformation that brings the source points onto the template ones, over an image of the
+     * given size. The transformation is fitted and the mesh is built only if they are not cached yet.
+     * Meshes are only read while mapping images, so the same one can be used by several threads at once.
+     */
+    public CoordinateTransformMesh getMesh(List<Point> sourcePoints, List<Point> templatePoints, boolean rotate, int width, int height, int meshResolution) throws Exception {
+        Key key = new Key(sourcePoints, templatePoints, LeastSquareImageTransformation.getModelClass(rotate), width, height, meshResolution);
+        synchronized (this) {
+            CoordinateTransformMesh mesh = meshes.get(key);
+            if (mesh != null) {
+                hits++;
+                return mesh;
+            }
+            misses++;
+        }
+        // the mesh is built outside of the lock, since building it is the slow part
+        MovingLeastSquaresTransform transform = LeastSquareImageTransformation.fit(sourcePoints, templatePoints, rotate);
+        CoordinateTransformMesh mesh = new CoordinateTransformMesh(transform, meshResolution, width, height);
+        long size = key.getBytes() + mesh.getAV().size() * TRIANGLE_BYTES;
+        synchronized (this) {
+            // a mesh bigger than the whole budget is just handed back, another thread may also have built the same one
+            if (size <= maxBytes && !meshes.containsKey(key)) {
+                meshes.put(key, mesh);
+                sizes.put(key, size);
+                bytes += size;
+                evict();
+            }
+        }
+        return mesh;
+    }
+
+    private void evict() {
+        Iterator<Key> keys = meshes.keySet().iterator();
+        while (bytes > maxBytes && keys.hasNext()) {
+            bytes -= sizes.remove(keys.next());
+            keys.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        meshes.clear();
+        sizes.clear();
+        bytes = 0;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
@@ -0,0 +1,49 @@
+package DS4H;
+
+import mpicbg.models.AbstractAffineModel2D;
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.RigidModel2D;
+import mpicbg.models.SimilarityModel2D;
+
+/**
+ * The transformations that can bring an image onto the reference one.
+ * Moving least squares deforms each region of the image according to its nearest landmarks, while the other ones apply
+ * the same (global) transformation to the whole image, which is much faster to compute.
+ */
+public enum TransformationModel {
+    MOVING_LEAST_SQUARES("Moving least squares"),
+    AFFINE("Affine"),
+    SIMILARITY("Similarity"),
+    RIGID("Rigid");
+
+    private final String description;
+
+    TransformationModel(String description) {
+        this.description = description;
+    }
+
+    public boolean isGlobal() {
+        return this != MOVING_LEAST_SQUARES;
+    }
+
+    /**
+     * Returns a new instance of the global model, ready to be fitted
+     */
+    public AbstractAffineModel2D<?> createModel() {
+        switch (this) {
+            case AFFINE:
+                return new AffineModel2D();
+            case SIMILARITY:
+                return new SimilarityModel2D();
+            case RIGID:
+                return new RigidModel2D();
+            default:
+                throw new UnsupportedOperationException(description + " is not a global model");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+}
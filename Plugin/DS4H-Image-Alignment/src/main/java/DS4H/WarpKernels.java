@@ -0,0 +1,377 @@
+package DS4H;
+
+import ij.Prefs;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.NoninvertibleModelException;
+import mpicbg.models.PointMatch;
+import mpicbg.models.TransformMesh;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Bicubic warp kernels specialized for each pixel type, working directly on the pixel arrays of the processors.
+ * They compute exactly what ImageProcessor.getPixelInterpolated and putPixel compute (Catmull-Rom weights, summed in
+ * the same order and rounded the same way), without a virtual call for every pixel and channel. Pixels too close to the
+ * border of the source image for the 4x4 neighbourhood are still sampled by the processor itself, so that its own
+ * edge handling is preserved.
+ * Source coordinates are computed a row at a time by the caller, then sampled by the kernel of the pixel type. Every
+ * target row is written by a single thread, so bands of rows of the same image can be warped in parallel.
+ */
+public class WarpKernels {
+    // When false, the generic ImageJ sampling is always used
+    public static final String ENABLED_PREFERENCE = "DS4H.warpKernels";
+    // When true, every warp made with the kernels is made again with the generic sampling, and the differences are logged
+    public static final String CHECK_PREFERENCE = "DS4H.checkWarpKernels";
+
+    // When false, every warp runs on the calling thread only
+    public static final String PARALLEL_PREFERENCE = "DS4H.parallelWarp";
+
+    // Catmull-Rom interpolation, as in ImageProcessor.cubic
+    private static final double A = 0.5;
+    // bands smaller than this are not worth a task of their own
+    private static final int MIN_BAND_ROWS = 64;
+    private static final int BANDS_PER_THREAD = 4;
+
+    /**
+     * Processes the target rows in [fromRow, toRow)
+     */
+    public interface RowBand {
+        void run(int fromRow, int toRow);
+    }
+
+    private static class BandTask extends RecursiveAction {
+        private final RowBand band;
+        private final int fromRow;
+        private final int toRow;
+        private final int bandRows;
+
+        private BandTask(RowBand band, int fromRow, int toRow, int bandRows) {
+            this.band = band;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.bandRows = bandRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (toRow - fromRow <= bandRows) {
+                band.run(fromRow, toRow);
+                return;
+            }
+            int middle = fromRow + (toRow - fromRow) / 2;
+            invokeAll(new BandTask(band, fromRow, middle, bandRows), new BandTask(band, middle, toRow, bandRows));
+        }
+    }
+
+    public static boolean isEnabled() {
+        return Prefs.get(ENABLED_PREFERENCE, true);
+    }
+
+    public static boolean isCheckEnabled() {
+        return Prefs.get(CHECK_PREFERENCE, false);
+    }
+
+    /**
+     * Returns true if the kernels can warp the source onto the target: same pixel type, bicubic interpolation, and no
+     * calibration table (that ImageJ would apply while sampling)
+     */
+    public static boolean supports(ImageProcessor source, ImageProcessor target) {
+        return source.getClass() == target.getClass() &&
+                (source instanceof ByteProcessor || source instanceof ShortProcessor || source instanceof FloatProcessor || source instanceof ColorProcessor) &&
+                source.getInterpolationMethod() == ImageProcessor.BICUBIC && source.getCalibrationTable() == null;
+    }
+
+    /**
+     * Samples the source at the given coordinates, storing the results in the given pixels of a row of the target
+     * @param row the index of the target row
+     * @param targetX the x of each target pixel
+     * @param sourceX the x of the source coordinate of each target pixel
+     * @param sourceY the y of the source coordinate of each target pixel
+     */
+    public static void sampleRow(ImageProcessor source, ImageProcessor target, int row, int[] targetX, double[] sourceX, double[] sourceY, int count) {
+        int offset = row * target.getWidth();
+        if (source instanceof ByteProcessor)
+            sampleBytes(source, (byte[])source.getPixels(), (byte[])target.getPixels(), offset, targetX, sourceX, sourceY, count);
+        else if (source instanceof ShortProcessor)
+            sampleShorts(source, (short[])source.getPixels(), (short[])target.getPixels(), offset, targetX, sourceX, sourceY, count);
+        else if (source instanceof FloatProcessor)
+            sampleFloats(source, (float[])source.getPixels(), (float[])target.getPixels(), offset, targetX, sourceX, sourceY, count);
+        else
+            sampleRGB(source, (int[])source.getPixels(), (int[])target.getPixels(), offset, targetX, sourceX, sourceY, count);
+    }
+
+    /**
+     * Maps the source onto the target through the triangles of the given mesh, visiting the same pixels in the same
+     * order of mpicbg's TransformMeshMapping.mapInterpolated.
+     * The target rows are split in bands that are warped in parallel. Each band visits all the triangles in the same order,
+     * but only writes its own rows, so every pixel ends up with the value of the sequential mapping.
+     */
+    public static void mapInterpolated(TransformMesh mesh, ImageProcessor source, ImageProcessor target) {
+        forEachBand(target.getHeight(), (fromRow, toRow) -> mapBand(mesh, source, target, fromRow, toRow));
+    }
+
+    private static void mapBand(TransformMesh mesh, ImageProcessor source, ImageProcessor target, int fromRow, int toRow) {
+        final int w = target.getWidth() - 1;
+        final int h = target.getHeight() - 1;
+        final int[] targetX = new int[target.getWidth()];
+        final double[] sourceX = new double[target.getWidth()];
+        final double[] sourceY = new double[target.getWidth()];
+        final double[] t = new double[2];
+
+        for (Map.Entry<AffineModel2D, ArrayList<PointMatch>> triangle : mesh.getAV().entrySet()) {
+            final AffineModel2D ai = triangle.getKey();
+            final ArrayList<PointMatch> pm = triangle.getValue();
+            final double[] a = pm.get(0).getP2().getW();
+            final double[] b = pm.get(1).getP2().getW();
+            final double[] c = pm.get(2).getP2().getW();
+            final int minX = Math.max(0, roundPos(Math.min(a[0], Math.min(b[0], c[0]))));
+            final int minY = Math.max(fromRow, Math.max(0, roundPos(Math.min(a[1], Math.min(b[1], c[1])))));
+            final int maxX = Math.min(w, roundPos(Math.max(a[0], Math.max(b[0], c[0]))));
+            final int maxY = Math.min(toRow - 1, Math.min(h, roundPos(Math.max(a[1], Math.max(b[1], c[1])))));
+
+            for (int y = minY; y <= maxY; y++) {
+                int count = 0;
+                for (int x = minX; x <= maxX; x++) {
+                    if (!isInTriangle(a[0], a[1], b[0], b[1], c[0], c[1], x, y))
+                        continue;
+                    t[0] = x;
+                    t[1] = y;
+                    try {
+                        ai.applyInverseInPlace(t);
+                    } catch (NoninvertibleModelException e) {
+                        continue;
+                    }
+                    targetX[count] = x;
+                    sourceX[count] = t[0];
+                    sourceY[count] = t[1];
+                    count++;
+                }
+                if (count > 0)
+                    sampleRow(source, target, y, targetX, sourceX, sourceY, count);
+            }
+        }
+    }
+
+    /**
+     * Runs the given action on bands of consecutive rows, in parallel on the common fork-join pool. Images too small to
+     * be worth splitting are processed by the calling thread in a single band.
+     */
+    public static void forEachBand(int rows, RowBand band) {
+        int parallelism = Prefs.get(PARALLEL_PREFERENCE, true) ? ForkJoinPool.getCommonPoolParallelism() : 1;
+        // a few bands per thread, so that a thread that finishes early can steal work from the others
+        int bands = Math.min(parallelism * BANDS_PER_THREAD, rows / MIN_BAND_ROWS);
+        if (parallelism <= 1 || bands <= 1) {
+            band.run(0, rows);
+            return;
+        }
+        ForkJoinPool.commonPool().invoke(new BandTask(band, 0, rows, (rows + bands - 1) / bands));
+    }
+
+    /**
+     * Returns the number of pixels that differ between the two processors
+     */
+    public static long countDifferences(ImageProcessor first, ImageProcessor second) {
+        long differences = 0;
+        boolean floats = first instanceof FloatProcessor;
+        for (int i = 0; i < first.getPixelCount(); i++)
+            if (floats ? Float.compare(first.getf(i), second.getf(i)) != 0 : first.get(i) != second.get(i))
+                differences++;
+        return differences;
+    }
+
+    private static void sampleBytes(ImageProcessor source, byte[] sourcePixels, byte[] targetPixels, int offset, int[] targetX, double[] sourceX, double[] sourceY, int count) {
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        final double[] wx = new double[4];
+        final double[] wy = new double[4];
+        for (int k = 0; k < count; k++) {
+            final double x = sourceX[k];
+            final double y = sourceY[k];
+            final int u0 = (int)Math.floor(x);
+            final int v0 = (int)Math.floor(y);
+            int value;
+            if (u0 <= 0 || v0 <= 0 || u0 >= width - 2 || v0 >= height - 2)
+                value = sampleBorder(source, x, y);
+            else {
+                weights(x, u0, wx);
+                weights(y, v0, wy);
+                double q = 0;
+                for (int j = 0; j <= 3; j++) {
+                    final int rowOffset = (v0 - 1 + j) * width + u0 - 1;
+                    double p = 0;
+                    for (int i = 0; i <= 3; i++)
+                        p = p + (sourcePixels[rowOffset + i] & 0xff) * wx[i];
+                    q = q + p * wy[j];
+                }
+                value = (int)(q + 0.5);
+            }
+            targetPixels[offset + targetX[k]] = (byte)(value < 0 ? 0 : value > 255 ? 255 : value);
+        }
+    }
+
+    private static void sampleShorts(ImageProcessor source, short[] sourcePixels, short[] targetPixels, int offset, int[] targetX, double[] sourceX, double[] sourceY, int count) {
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        final double[] wx = new double[4];
+        final double[] wy = new double[4];
+        for (int k = 0; k < count; k++) {
+            final double x = sourceX[k];
+            final double y = sourceY[k];
+            final int u0 = (int)Math.floor(x);
+            final int v0 = (int)Math.floor(y);
+            int value;
+            if (u0 <= 0 || v0 <= 0 || u0 >= width - 2 || v0 >= height - 2)
+                value = sampleBorder(source, x, y);
+            else {
+                weights(x, u0, wx);
+                weights(y, v0, wy);
+                double q = 0;
+                for (int j = 0; j <= 3; j++) {
+                    final int rowOffset = (v0 - 1 + j) * width + u0 - 1;
+                    double p = 0;
+                    for (int i = 0; i <= 3; i++)
+                        p = p + (sourcePixels[rowOffset + i] & 0xffff) * wx[i];
+                    q = q + p * wy[j];
+                }
+                value = (int)(q + 0.5);
+            }
+            targetPixels[offset + targetX[k]] = (short)(value < 0 ? 0 : value > 65535 ? 65535 : value);
+        }
+    }
+
+    private static void sampleFloats(ImageProcessor source, float[] sourcePixels, float[] targetPixels, int offset, int[] targetX, double[] sourceX, double[] sourceY, int count) {
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        final double[] wx = new double[4];
+        final double[] wy = new double[4];
+        for (int k = 0; k < count; k++) {
+            final double x = sourceX[k];
+            final double y = sourceY[k];
+            final int u0 = (int)Math.floor(x);
+            final int v0 = (int)Math.floor(y);
+            if (u0 <= 0 || v0 <= 0 || u0 >= width - 2 || v0 >= height - 2) {
+                targetPixels[offset + targetX[k]] = Float.intBitsToFloat(sampleBorder(source, x, y));
+                continue;
+            }
+            weights(x, u0, wx);
+            weights(y, v0, wy);
+            double q = 0;
+            for (int j = 0; j <= 3; j++) {
+                final int rowOffset = (v0 - 1 + j) * width + u0 - 1;
+                double p = 0;
+                for (int i = 0; i <= 3; i++)
+                    p = p + sourcePixels[rowOffset + i] * wx[i];
+                q = q + p * wy[j];
+            }
+            targetPixels[offset + targetX[k]] = (float)q;
+        }
+    }
+
+    private static void sampleRGB(ImageProcessor source, int[] sourcePixels, int[] targetPixels, int offset, int[] targetX, double[] sourceX, double[] sourceY, int count) {
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        final double[] wx = new double[4];
+        final double[] wy = new double[4];
+        for (int k = 0; k < count; k++) {
+            final double x = sourceX[k];
+            final double y = sourceY[k];
+            final int u0 = (int)Math.floor(x);
+            final int v0 = (int)Math.floor(y);
+            if (u0 <= 0 || v0 <= 0 || u0 >= width - 2 || v0 >= height - 2) {
+                targetPixels[offset + targetX[k]] = sampleBorder(source, x, y);
+                continue;
+            }
+            weights(x, u0, wx);
+            weights(y, v0, wy);
+            double qr = 0, qg = 0, qb = 0;
+            for (int j = 0; j <= 3; j++) {
+                final int rowOffset = (v0 - 1 + j) * width + u0 - 1;
+                double pr = 0, pg = 0, pb = 0;
+                for (int i = 0; i <= 3; i++) {
+                    final int c = sourcePixels[rowOffset + i];
+                    pr = pr + ((c & 0xff0000) >> 16) * wx[i];
+                    pg = pg + ((c & 0xff00) >> 8) * wx[i];
+                    pb = pb + (c & 0xff) * wx[i];
+                }
+                qr = qr + pr * wy[j];
+                qg = qg + pg * wy[j];
+                qb = qb + pb * wy[j];
+            }
+            targetPixels[offset + targetX[k]] = 0xff000000 | (clamp(qr) << 16) | (clamp(qg) << 8) | clamp(qb);
+        }
+    }
+
+    /**
+     * Samples a pixel too close to the border for the kernels. The processor changes its own state while interpolating
+     * near the border, so the bands of a parallel warp use it one at a time.
+     */
+    private static int sampleBorder(ImageProcessor source, double x, double y) {
+        synchronized (source) {
+            return source.getPixelInterpolated(x, y);
+        }
+    }
+
+    private static int clamp(double value) {
+        int rounded = (int)(value + 0.5);
+        return rounded < 0 ? 0 : rounded > 255 ? 255 : rounded;
+    }
+
+    /**
+     * The cubic weights of the 4 pixels around the given coordinate, as computed by ImageProcessor.cubic(x0 - u)
+     */
+    private static void weights(double coordinate, int origin, double[] weights) {
+        for (int i = 0; i <= 3; i++)
+            weights[i] = cubic(coordinate - (origin - 1 + i));
+    }
+
+    private static double cubic(double x) {
+        if (x < 0.0)
+            x = -x;
+        double z = 0.0;
+        if (x < 1.0)
+            z = x * x * (x * (-A + 2.0) + (A - 3.0)) + 1.0;
+        else if (x < 2.0)
+            z = -A * x * x * x + 5.0 * A * x * x - 8.0 * A * x + 4.0 * A;
+        return z;
+    }
+
+    private static int roundPos(double value) {
+        return (int)(value + 0.5);
+    }
+
+    private static boolean isInTriangle(double ax, double ay, double bx, double by, double cx, double cy, double tx, double ty) {
+        final boolean d;
+        {
+            final double x1 = bx - ax;
+            final double y1 = by - ay;
+            final double x2 = tx - ax;
+            final double y2 = ty - ay;
+            d = x1 * y2 - y1 * x2 < 0;
+        }
+        {
+            final double x1 = cx - bx;
+            final double y1 = cy - by;
+            final double x2 = tx - bx;
+            final double y2 = ty - by;
+            if (d ^ x1 * y2 - y1 * x2 < 0)
+                return false;
+        }
+        {
+            final double x1 = ax - cx;
+            final double y1 = ay - cy;
+            final double x2 = tx - cx;
+            final double y2 = ty - cy;
+            if (d ^ x1 * y2 - y1 * x2 < 0)
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,312 @@
+package DS4H;
+
+import ij.IJ;
+import ij.Prefs;
+import ij.process.ImageProcessor;
+import mpicbg.models.Point;
+
+import java.awt.*;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the aligned images on disk, compressed as in CompressedImageStack, so that aligning again after moving a few
+ * landmarks reads and warps only the images whose landmarks have actually changed.
+ * Each image is identified by a SHA-256 hash of everything its aligned pixels depend on: the source file (path, size and
+ * modification time), the plane, its landmarks and the ones of the image it is aligned onto, the transformation and the
+ * pixel format. When the cache exceeds its budget, the least recently used images are deleted.
+ * The cache is off unless enabled by its preference, since it takes up to its whole budget of disk space. The size and
+ * use order of the images are read from the directory once, then kept in memory, so that storing an image does not scan
+ * the directory again.
+ */
+public class WarpedSliceCache {
+    public static final String ENABLED_PREFERENCE = "DS4H.warpedSliceCache";
+    // Directory of the cache. When not set, a directory in the ImageJ temporary directory is used
+    public static final String DIRECTORY_PREFERENCE = "DS4H.warpedSliceCacheDirectory";
+    // Disk budget of the cache in MB
+    public static final String BUDGET_PREFERENCE = "DS4H.warpedSliceCacheBudget";
+    private static final long DEFAULT_BUDGET = 4096;
+    private static final String EXTENSION = ".slice";
+    private static final int MAGIC = 0x44533453; // DS4S
+    // changes whenever the aligned pixels would change for the same inputs, so that older images are not used anymore
+    private static final int VERSION = 2;
+
+    private final File directory;
+    private final long budget;
+    // size of each cached image, least recently used first: null until the directory has been scanned
+    private LinkedHashMap<String, Long> index;
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    public WarpedSliceCache(File directory, long budget) {
+        this.directory = directory;
+        this.budget = budget;
+    }
+
+    /**
+     * Returns the cache configured by the preferences, or null if the alignments should not be cached
+     */
+    public static WarpedSliceCache getDefault() {
+        if (!Prefs.get(ENABLED_PREFERENCE, false))
+            return null;
+        String directory = Prefs.get(DIRECTORY_PREFERENCE, "");
+        long budget = (long)Prefs.get(BUDGET_PREFERENCE, DEFAULT_BUDGET) * 1024 * 1024;
+        return new WarpedSliceCache(directory.isEmpty() ? new File(IJ.getDir("temp"), "DS4H-warped-slices") : new File(directory), budget);
+    }
+
+    /**
+     * Returns the key of the image at the given index of the stack, aligned onto the image at templateIndex
+     */
+    public static String getKey(ImagesManager manager, int index, int templateIndex, boolean rotate, TransformationModel model, boolean interpolate, PixelFormat format) {
+        MessageDigest digest = createDigest(manager, index, format);
+        update(digest, getPoints(manager, index));
+        update(digest, getPoints(manager, templateIndex));
+        Dimension templateDimension = manager.getImageFile(templateIndex).getWholeSlideDimension();
+        update(digest, templateDimension.width + "x" + templateDimension.height);
+        update(digest, (rotate ? "rotate " : "") + model.name() + (interpolate ? " interpolated" : ""));
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Returns the key of the image at the given index of the stack as it is, as the first image of an alignment
+     */
+    public static String getKey(ImagesManager manager, int index, PixelFormat format) {
+        return toHex(createDigest(manager, index, format).digest());
+    }
+
+    private static MessageDigest createDigest(ImagesManager manager, int index, PixelFormat format) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+        File file = new File(manager.getImageFile(index).getPathFile()).getAbsoluteFile();
+        update(digest, VERSION + "\n" + file.getPath() + "\n" + file.length() + "\n" + file.lastModified());
+        update(digest, manager.getLocalIndex(index) + " " + format);
+        return digest;
+    }
+
+    /**
+     * Returns the landmarks of the image at the given index, in the coordinates of its full resolution image, as the alignment uses them
+     */
+    private static List<Point> getPoints(ImagesManager manager, int index) {
+        ImageFile imageFile = manager.getImageFile(index);
+        return LeastSquareImageTransformation.getPoints(imageFile.getLandmarks().get(manager.getLocalIndex(index)),
+                imageFile.getWholeSlideDimension(), imageFile.getEditorImageDimension());
+    }
+
+    private static void update(MessageDigest digest, List<Point> points) {
+        StringBuilder builder = new StringBuilder();
+        for (Point point : points)
+            builder.append(Double.doubleToLongBits(point.getL()[0])).append(',').append(Double.doubleToLongBits(point.getL()[1])).append(';');
+        update(digest, builder.toString());
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        // a separator, so that moving characters from a value to the next one changes the key
+        digest.update((byte)0);
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return builder.toString();
+    }
+
+    /**
+     * Returns the compressed channels of the image with the given key, or null if it is not cached
+     */
+    public CompressedImageStack.Slice[] get(String key) {
+        File file = getFile(key);
+        if (!file.isFile()) {
+            recordAccess(false);
+            return null;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != MAGIC)
+                throw new IOException(file + " is not a cached image");
+            CompressedImageStack.Slice[] slices = new CompressedImageStack.Slice[input.readInt()];
+            for (int i = 0; i < slices.length; i++) {
+                byte[] data = new byte[input.readInt()];
+                input.readFully(data);
+                slices[i] = CompressedImageStack.fromData("", data);
+            }
+            // the modification time tells the next sessions which images have been used least recently
+            file.setLastModified(System.currentTimeMillis());
+            record(key, file.length());
+            recordAccess(true);
+            return slices;
+        }
+        catch (IOException | RuntimeException e) {
+            // a damaged image is just aligned again
+            e.printStackTrace();
+            file.delete();
+            forget(key);
+            recordAccess(false);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the channels of the image with the given key, or null if it is not cached
+     */
+    public ImageProcessor[] getChannels(String key, int width, int height) {
+        CompressedImageStack.Slice[] slices = get(key);
+        if (slices == null)
+            return null;
+        ImageProcessor[] channels = new ImageProcessor[slices.length];
+        for (int i = 0; i < slices.length; i++)
+            channels[i] = CompressedImageStack.decompress(slices[i], width, height);
+        return channels;
+    }
+
+    /**
+     * Stores the compressed channels of the image with the given key. Images that can't be written are just not cached.
+     */
+    public void put(String key, CompressedImageStack.Slice[] slices) {
+        File file = getFile(key);
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new IOException("Can't create " + directory);
+            // written aside and then moved, so that other alignments never read a partial image
+            File temporary = File.createTempFile(key, ".tmp", directory);
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+                output.writeInt(MAGIC);
+                output.writeInt(slices.length);
+                for (CompressedImageStack.Slice slice : slices) {
+                    output.writeInt(slice.getData().length);
+                    output.write(slice.getData());
+                }
+            }
+            try {
+                Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        record(key, file.length());
+        evict();
+    }
+
+    /**
+     * Stores the given channels of the image with the given key
+     */
+    public void putChannels(String key, ImageProcessor[] channels) {
+        CompressedImageStack.Slice[] slices = new CompressedImageStack.Slice[channels.length];
+        for (int i = 0; i < channels.length; i++)
+            slices[i] = CompressedImageStack.compress("", channels[i]);
+        put(key, slices);
+    }
+
+    /**
+     * Scans the directory the first time the cache is used, ordering the images by their last use
+     */
+    private void loadIndex() {
+        if (index != null)
+            return;
+        // access order: every lookup moves the image to the end
+        index = new LinkedHashMap<>(16, 0.75f, true);
+        size = 0;
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (files == null)
+            return;
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            long length = file.length();
+            index.put(file.getName().substring(0, file.getName().length() - EXTENSION.length()), length);
+            size += length;
+        }
+    }
+
+    /**
+     * Marks the image with the given key as the most recently used one
+     */
+    private synchronized void record(String key, long length) {
+        loadIndex();
+        Long previous = index.put(key, length);
+        size += length - (previous == null ? 0 : previous);
+    }
+
+    private synchronized void forget(String key) {
+        loadIndex();
+        Long previous = index.remove(key);
+        if (previous != null)
+            size -= previous;
+    }
+
+    /**
+     * Deletes the least recently used images until the cache fits in its budget
+     */
+    private synchronized void evict() {
+        loadIndex();
+        Iterator<Map.Entry<String, Long>> entries = index.entrySet().iterator();
+        while (size > budget && entries.hasNext()) {
+            Map.Entry<String, Long> entry = entries.next();
+            File file = getFile(entry.getKey());
+            // an image deleted by someone else only has to be forgotten
+            if (file.delete() || !file.exists()) {
+                size -= entry.getValue();
+                entries.remove();
+            }
+        }
+    }
+
+    /**
+     * Deletes all the cached images
+     */
+    public synchronized void clear() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        index = null;
+        size = 0;
+    }
+
+    private File getFile(String key) {
+        return new File(directory, key + EXTENSION);
+    }
+
+    private synchronized void recordAccess(boolean hit) {
+        if (hit)
+            hits++;
+        else
+            misses++;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
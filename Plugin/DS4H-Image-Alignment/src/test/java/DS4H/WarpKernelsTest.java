@@ -0,0 +1,115 @@
+package DS4H;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import mpicbg.ij.TransformMeshMapping;
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.CoordinateTransform;
+import mpicbg.models.CoordinateTransformMesh;
+import mpicbg.models.Point;
+import org.junit.Test;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the warp kernels produce exactly the pixels of mpicbg's TransformMeshMapping, for every pixel type they
+ * support. The images are warped with a moving least squares mesh, as when aligning, and with a rotation that moves part
+ * of the image out of the source, so that the pixels sampled by the processor itself near the border are checked too.
+ */
+public class WarpKernelsTest {
+    private static final int WIDTH = 300;
+    private static final int HEIGHT = 200;
+    private static final int MESH_RESOLUTION = 32;
+
+    @Test
+    public void movingLeastSquaresMatchesTransformMeshMapping() throws Exception {
+        CoordinateTransform transform = createMovingLeastSquares();
+        for (ImageProcessor source : createProcessors())
+            assertSameWarp(source, transform);
+    }
+
+    @Test
+    public void borderMatchesTransformMeshMapping() {
+        CoordinateTransform transform = createRotation();
+        for (ImageProcessor source : createProcessors())
+            assertSameWarp(source, transform);
+    }
+
+    private static void assertSameWarp(ImageProcessor source, CoordinateTransform transform) {
+        String type = source.getClass().getSimpleName();
+        CoordinateTransformMesh mesh = new CoordinateTransformMesh(transform, MESH_RESOLUTION, WIDTH, HEIGHT);
+        source.setInterpolationMethod(ImageProcessor.BICUBIC);
+        ImageProcessor warped = source.createProcessor(WIDTH, HEIGHT);
+        ImageProcessor reference = source.createProcessor(WIDTH, HEIGHT);
+        assertTrue(type + " is not supported by the kernels", WarpKernels.supports(source, warped));
+
+        WarpKernels.mapInterpolated(mesh, source, warped);
+        new TransformMeshMapping<>(mesh).mapInterpolated(source, reference);
+        assertEquals(type + " pixels differ from TransformMeshMapping", 0, WarpKernels.countDifferences(warped, reference));
+    }
+
+    /**
+     * An image of each pixel type the kernels support, filled with a smooth pattern and some noise, so that the
+     * interpolation has real work to do
+     */
+    private static List<ImageProcessor> createProcessors() {
+        List<ImageProcessor> processors = Arrays.asList(new ByteProcessor(WIDTH, HEIGHT), new ShortProcessor(WIDTH, HEIGHT),
+                new FloatProcessor(WIDTH, HEIGHT), new ColorProcessor(WIDTH, HEIGHT));
+        Random random = new Random(1);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                double value = 0.5 + 0.25 * Math.sin(x * 0.031 + y * 0.017) + 0.2 * Math.cos(x * 0.013 - y * 0.029) + random.nextGaussian() * 0.05;
+                value = Math.max(0, Math.min(1, value));
+                processors.get(0).set(x, y, (int)(value * 255));
+                processors.get(1).set(x, y, (int)(value * 65535));
+                processors.get(2).setf(x, y, (float)value);
+                int gray = (int)(value * 255);
+                processors.get(3).set(x, y, (gray << 16) | ((255 - gray) << 8) | (gray * 7 & 0xff));
+            }
+        }
+        return processors;
+    }
+
+    /**
+     * A moving least squares transformation fitted on a grid of landmarks moved by a small rotation, scaling and
+     * translation, plus a little jitter, like the ones between consecutive sections of the same sample
+     */
+    private static CoordinateTransform createMovingLeastSquares() throws Exception {
+        AffineTransform transform = AffineTransform.getTranslateInstance(4.5, -3);
+        transform.rotate(Math.toRadians(2), WIDTH / 2.0, HEIGHT / 2.0);
+        Random random = new Random(2);
+        List<Point> sourcePoints = new ArrayList<>();
+        List<Point> templatePoints = new ArrayList<>();
+        for (int row = 0; row < 4; row++) {
+            for (int column = 0; column < 4; column++) {
+                Point2D landmark = new Point2D.Double(WIDTH * (0.15 + column * 0.23), HEIGHT * (0.15 + row * 0.23));
+                Point2D moved = transform.transform(landmark, null);
+                templatePoints.add(new Point(new double[] {landmark.getX(), landmark.getY()}));
+                sourcePoints.add(new Point(new double[] {moved.getX() + random.nextDouble() * 2 - 1, moved.getY() + random.nextDouble() * 2 - 1}));
+            }
+        }
+        return LeastSquareImageTransformation.fit(sourcePoints, templatePoints, true);
+    }
+
+    /**
+     * A rotation of a few degrees around a point off the center, which leaves a corner of the target without source pixels
+     */
+    private static CoordinateTransform createRotation() {
+        AffineTransform rotation = AffineTransform.getRotateInstance(Math.toRadians(7), WIDTH * 0.3, HEIGHT * 0.6);
+        rotation.translate(11.25, -6.5);
+        AffineModel2D model = new AffineModel2D();
+        model.set(rotation);
+        return model;
+    }
+}